@@ -0,0 +1,59 @@
+package org.embulk.input.zendesk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.embulk.input.zendesk.utils.MsgpackValueConverter;
+import org.embulk.util.json.JsonParser;
+import org.msgpack.value.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Json column conversion of a ticket with its related objects, straight from the Jackson tree against writing it
+ * to a string and parsing it again.
+ *
+ * Run with `./gradlew jmh -PjmhArgs="MsgpackValueConverterBenchmark -prof gc"`.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MsgpackValueConverterBenchmark
+{
+    private final JsonParser jsonParser = new JsonParser();
+    private JsonNode ticket;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        try (InputStream fixture = MsgpackValueConverterBenchmark.class.getResourceAsStream("/data/ticket_with_related_objects.json")) {
+            ticket = new ObjectMapper().readTree(fixture);
+        }
+    }
+
+    @Benchmark
+    public Value convertTree()
+    {
+        return MsgpackValueConverter.convert(ticket);
+    }
+
+    @Benchmark
+    public Value writeAndParseString()
+    {
+        return jsonParser.parse(ticket.toString());
+    }
+}
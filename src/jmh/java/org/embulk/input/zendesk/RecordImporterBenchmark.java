@@ -0,0 +1,236 @@
+package org.embulk.input.zendesk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.input.zendesk.utils.ZendeskDateUtils;
+import org.embulk.input.zendesk.utils.ZendeskUtils;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.json.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Records per second written to a page by the importer for a wide ticket schema, against the previous importer visiting the schema for every record.
+ *
+ * Run with `./gradlew jmh -PjmhArgs="RecordImporterBenchmark -prof gc"`.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordImporterBenchmark
+{
+    private static final int STRING_COLUMNS = 40;
+    private static final int LONG_COLUMNS = 10;
+    private static final int TIMESTAMP_COLUMNS = 6;
+    private static final int BOOLEAN_COLUMNS = 4;
+    private static final int JSON_COLUMNS = 4;
+
+    private PageBuilder pageBuilder;
+    private RecordImporter recordImporter;
+    private VisitorRecordImporter visitorRecordImporter;
+    private JsonNode ticket;
+
+    @Setup
+    public void setup()
+    {
+        final Schema.Builder schemaBuilder = Schema.builder();
+        final ObjectNode record = JsonNodeFactory.instance.objectNode();
+        for (int i = 0; i < STRING_COLUMNS; i++) {
+            schemaBuilder.add("string_" + i, Types.STRING);
+            // A few fields are null, as custom fields often are
+            if (i % 8 == 0) {
+                record.putNull("string_" + i);
+            }
+            else {
+                record.put("string_" + i, "value of the field " + i);
+            }
+        }
+        for (int i = 0; i < LONG_COLUMNS; i++) {
+            schemaBuilder.add("long_" + i, Types.LONG);
+            record.put("long_" + i, 360857467053L + i);
+        }
+        for (int i = 0; i < TIMESTAMP_COLUMNS; i++) {
+            schemaBuilder.add("timestamp_" + i, Types.TIMESTAMP);
+            record.put("timestamp_" + i, "2019-02-20T06:51:5" + i + "Z");
+        }
+        for (int i = 0; i < BOOLEAN_COLUMNS; i++) {
+            schemaBuilder.add("boolean_" + i, Types.BOOLEAN);
+            record.put("boolean_" + i, i % 2 == 0);
+        }
+        for (int i = 0; i < JSON_COLUMNS; i++) {
+            schemaBuilder.add("json_" + i, Types.JSON);
+            record.putArray("json_" + i).add("tag_" + i).add(i);
+        }
+        final Schema schema = schemaBuilder.build();
+        ticket = record;
+
+        pageBuilder = new PageBuilder(new HeapBufferAllocator(), schema, new DiscardPageOutput());
+        recordImporter = new RecordImporter(schema, pageBuilder);
+        visitorRecordImporter = new VisitorRecordImporter(schema, pageBuilder);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        pageBuilder.close();
+    }
+
+    @Benchmark
+    public void compiledColumnWriters()
+    {
+        recordImporter.addRecord(ticket);
+    }
+
+    @Benchmark
+    public void visitColumnsPerRecord()
+    {
+        visitorRecordImporter.addRecord(ticket);
+    }
+
+    private static class HeapBufferAllocator implements BufferAllocator
+    {
+        private static final int PAGE_SIZE = 32 * 1024;
+
+        @Override
+        public Buffer allocate()
+        {
+            return Buffer.allocate(PAGE_SIZE);
+        }
+
+        @Override
+        public Buffer allocate(final int minimumCapacity)
+        {
+            return Buffer.allocate(Math.max(minimumCapacity, PAGE_SIZE));
+        }
+    }
+
+    private static class DiscardPageOutput implements PageOutput
+    {
+        @Override
+        public void add(final Page page)
+        {
+            page.release();
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * The importer before the column writers, a column visitor and a setter are created for every record.
+     */
+    private static class VisitorRecordImporter
+    {
+        private final Schema schema;
+        private final PageBuilder pageBuilder;
+
+        VisitorRecordImporter(final Schema schema, final PageBuilder pageBuilder)
+        {
+            this.schema = schema;
+            this.pageBuilder = pageBuilder;
+        }
+
+        synchronized void addRecord(final JsonNode record)
+        {
+            schema.visitColumns(new ColumnVisitor()
+            {
+                @Override
+                public void jsonColumn(final Column column)
+                {
+                    setColumn(column, record.get(column.getName()), (value) -> {
+                        pageBuilder.setJson(column, new JsonParser().parse(value.toString()));
+                        return null;
+                    });
+                }
+
+                @Override
+                public void stringColumn(final Column column)
+                {
+                    setColumn(column, record.get(column.getName()), (value) -> {
+                        pageBuilder.setString(column, value.asText());
+                        return null;
+                    });
+                }
+
+                @Override
+                public void timestampColumn(final Column column)
+                {
+                    setColumn(column, record.get(column.getName()), (value) -> {
+                        pageBuilder.setTimestamp(column, Instant.ofEpochSecond(ZendeskDateUtils.isoToEpochSecond(value.asText())));
+                        return null;
+                    });
+                }
+
+                @Override
+                public void booleanColumn(final Column column)
+                {
+                    setColumn(column, record.get(column.getName()), (value) -> {
+                        pageBuilder.setBoolean(column, value.asBoolean());
+                        return null;
+                    });
+                }
+
+                @Override
+                public void longColumn(final Column column)
+                {
+                    setColumn(column, record.get(column.getName()), (value) -> {
+                        pageBuilder.setLong(column, value.asLong());
+                        return null;
+                    });
+                }
+
+                @Override
+                public void doubleColumn(final Column column)
+                {
+                    setColumn(column, record.get(column.getName()), (value) -> {
+                        pageBuilder.setDouble(column, value.asDouble());
+                        return null;
+                    });
+                }
+
+                private void setColumn(final Column column, final JsonNode data, final Function<JsonNode, Void> setter)
+                {
+                    if (ZendeskUtils.isNull(data)) {
+                        pageBuilder.setNull(column);
+                        return;
+                    }
+                    setter.apply(data);
+                }
+            });
+
+            pageBuilder.addRecord();
+        }
+    }
+}
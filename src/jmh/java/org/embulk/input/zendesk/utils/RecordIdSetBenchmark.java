@@ -0,0 +1,93 @@
+package org.embulk.input.zendesk.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+/**
+ * Insert the ids of a backfill into the set of known ids, as the incremental dedup does.
+ *
+ * Run with `./gradlew jmh -PjmhArgs="RecordIdSetBenchmark -prof gc"`, gc.alloc.rate.norm gives the bytes allocated to hold the ids.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class RecordIdSetBenchmark
+{
+    @Param({"1000000", "5000000"})
+    public int size;
+
+    private long[] ids;
+
+    @Setup
+    public void setup()
+    {
+        // Ticket ids grow with gaps, pages return them in update order
+        final Random random = new Random(42);
+        ids = new long[size];
+        long id = 1;
+        for (int i = 0; i < size; i++) {
+            id += 1 + random.nextInt(3);
+            ids[i] = id;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final long swapped = ids[i];
+            ids[i] = ids[j];
+            ids[j] = swapped;
+        }
+    }
+
+    @Benchmark
+    public Set<String> stringSet()
+    {
+        final Set<String> knownIds = ConcurrentHashMap.newKeySet();
+        for (final long id : ids) {
+            knownIds.add(Long.toString(id));
+        }
+        return knownIds;
+    }
+
+    @Benchmark
+    public ConcurrentLongSet longSet()
+    {
+        final ConcurrentLongSet knownIds = new ConcurrentLongSet();
+        for (final long id : ids) {
+            knownIds.add(id);
+        }
+        return knownIds;
+    }
+
+    @Benchmark
+    public Set<String> stringSetConcurrent()
+    {
+        final Set<String> knownIds = ConcurrentHashMap.newKeySet();
+        LongStream.of(ids).parallel().forEach(id -> knownIds.add(Long.toString(id)));
+        return knownIds;
+    }
+
+    @Benchmark
+    public ConcurrentLongSet longSetConcurrent()
+    {
+        final ConcurrentLongSet knownIds = new ConcurrentLongSet();
+        LongStream.of(ids).parallel().forEach(knownIds::add);
+        return knownIds;
+    }
+}
@@ -1,118 +1,205 @@
 package org.embulk.input.zendesk;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import org.embulk.config.TaskReport;
+import org.embulk.input.zendesk.utils.MpscRingBuffer;
+import org.embulk.input.zendesk.utils.MsgpackValueConverter;
+import org.embulk.input.zendesk.utils.ZendeskConstants;
 import org.embulk.input.zendesk.utils.ZendeskDateUtils;
 import org.embulk.input.zendesk.utils.ZendeskUtils;
 import org.embulk.spi.Column;
 import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.DataException;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.Schema;
-import org.embulk.util.json.JsonParser;
+import org.msgpack.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
+import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER_FACTORY;
+
+/**
+ * Records are converted by the threads adding them, then published to a ring buffer that a single thread at a time
+ * drains into the page builder: the first one finding the writer free writes the records published by all of them.
+ * A failure to write is kept and thrown to the threads adding records and to the one finishing, not only to the writer.
+ */
 public class RecordImporter
 {
-    private Schema schema;
     private PageBuilder pageBuilder;
+    private final ColumnWriter[] columnWriters;
+    private final MpscRingBuffer<Object[]> rows = new MpscRingBuffer<>(ZendeskConstants.Misc.RECORD_BUFFER_SIZE);
+    private final ReentrantLock writer = new ReentrantLock();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder handedOffRecords = new LongAdder();
+    private final LongAdder fullBufferWaits = new LongAdder();
+    // Only updated by the writer
+    private volatile int maxQueueDepth;
 
     private static final Logger logger = LoggerFactory.getLogger(RecordImporter.class);
 
     public RecordImporter(Schema schema, PageBuilder pageBuilder)
     {
-        this.schema = schema;
         this.pageBuilder = pageBuilder;
+        this.columnWriters = compileColumnWriters(schema);
+    }
+
+    public void addRecord(final JsonNode record)
+    {
+        throwFailure();
+        final Object[] row = new Object[columnWriters.length];
+        for (int i = 0; i < columnWriters.length; i++) {
+            row[i] = columnWriters[i].convert(record);
+        }
+
+        while (!rows.offer(row)) {
+            fullBufferWaits.increment();
+            if (!drain()) {
+                Thread.yield();
+            }
+            throwFailure();
+        }
+        records.increment();
+        if (!drain()) {
+            handedOffRecords.increment();
+        }
+        throwFailure();
+    }
+
+    /**
+     * Write the records still in the buffer, once every thread is done adding records.
+     */
+    public void finish()
+    {
+        while (rows.size() > 0) {
+            if (!drain()) {
+                Thread.yield();
+            }
+        }
+        logger.info("Wrote '{}' records, '{}' handed off to the thread writing, '{}' waits on a full buffer, max queue depth '{}'",
+                records.sum(), handedOffRecords.sum(), fullBufferWaits.sum(), maxQueueDepth);
+        throwFailure();
+    }
+
+    public void addStatsToTaskReport(final TaskReport taskReport)
+    {
+        final TaskReport importReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        importReport.set("records", records.sum());
+        importReport.set("handed_off_records", handedOffRecords.sum());
+        importReport.set("full_buffer_waits", fullBufferWaits.sum());
+        importReport.set("max_queue_depth", maxQueueDepth);
+        taskReport.setNested("record_import", importReport);
+    }
+
+    private void throwFailure()
+    {
+        final Throwable error = failure.get();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error != null) {
+            throw new DataException(error);
+        }
+    }
+
+    /**
+     * @return false when another thread is writing, it will also write the records published before it's done
+     */
+    private boolean drain()
+    {
+        boolean drained = false;
+        do {
+            if (!writer.tryLock()) {
+                return drained;
+            }
+            try {
+                maxQueueDepth = Math.max(maxQueueDepth, rows.size());
+                Object[] row;
+                while ((row = rows.poll()) != null) {
+                    // Once a record failed the task fails, the rest are dropped instead of written after it
+                    if (failure.get() != null) {
+                        continue;
+                    }
+                    try {
+                        write(row);
+                    }
+                    catch (final Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+                drained = true;
+            }
+            finally {
+                writer.unlock();
+            }
+            // A record published while the writer was releasing the lock would otherwise wait for the next one
+        } while (rows.hasPublished());
+        return drained;
     }
 
-    public synchronized void addRecord(final JsonNode record)
+    private void write(final Object[] row)
     {
+        for (int i = 0; i < columnWriters.length; i++) {
+            columnWriters[i].write(row[i]);
+        }
+
+        pageBuilder.addRecord();
+    }
+
+    /**
+     * Resolve the converter and the setter of every column once, so that a record is written without visiting the schema.
+     */
+    private ColumnWriter[] compileColumnWriters(final Schema schema)
+    {
+        final ColumnWriter[] writers = new ColumnWriter[schema.getColumnCount()];
         schema.visitColumns(new ColumnVisitor()
         {
             @Override
             public void jsonColumn(final Column column)
             {
-                final JsonNode data = record.get(column.getName());
-
-                setColumn(column, data, (value) -> {
-                    pageBuilder.setJson(column, new JsonParser().parse(value.toString()));
-                    return null;
-                });
+                writers[column.getIndex()] = new ColumnWriter(column, MsgpackValueConverter::convert, value -> pageBuilder.setJson(column, (Value) value));
             }
 
             @Override
             public void stringColumn(final Column column)
             {
-                final JsonNode data = record.get(column.getName());
-
-                setColumn(column, data, (value) -> {
-                    pageBuilder.setString(column, value.asText());
-                    return null;
-                });
+                writers[column.getIndex()] = new ColumnWriter(column, JsonNode::asText, value -> pageBuilder.setString(column, (String) value));
             }
 
             @Override
             public void timestampColumn(final Column column)
             {
-                final JsonNode data = record.get(column.getName());
-                setColumn(column, data, (value) -> {
-                    final Instant timestamp = getTimestampValue(value.asText());
-                    if (timestamp == null) {
-                        pageBuilder.setNull(column);
-                    }
-                    else {
-                        pageBuilder.setTimestamp(column, timestamp);
-                    }
-                    return null;
-                });
+                writers[column.getIndex()] = new ColumnWriter(column, value -> getTimestampValue(value.asText()),
+                        value -> pageBuilder.setTimestamp(column, (Instant) value));
             }
 
             @Override
             public void booleanColumn(final Column column)
             {
-                final JsonNode data = record.get(column.getName());
-
-                setColumn(column, data, (value) -> {
-                    pageBuilder.setBoolean(column, value.asBoolean());
-                    return null;
-                });
+                writers[column.getIndex()] = new ColumnWriter(column, JsonNode::asBoolean, value -> pageBuilder.setBoolean(column, (Boolean) value));
             }
 
             @Override
             public void longColumn(final Column column)
             {
-                final JsonNode data = record.get(column.getName());
-
-                setColumn(column, data, (value) -> {
-                    pageBuilder.setLong(column, value.asLong());
-                    return null;
-                });
+                writers[column.getIndex()] = new ColumnWriter(column, JsonNode::asLong, value -> pageBuilder.setLong(column, (Long) value));
             }
 
             @Override
             public void doubleColumn(final Column column)
             {
-                final JsonNode data = record.get(column.getName());
-
-                setColumn(column, data, (value) -> {
-                    pageBuilder.setDouble(column, value.asDouble());
-                    return null;
-                });
-            }
-
-            private void setColumn(final Column column, final JsonNode data, final Function<JsonNode, Void> setter)
-            {
-                if (ZendeskUtils.isNull(data)) {
-                    pageBuilder.setNull(column);
-                    return;
-                }
-                setter.apply(data);
+                writers[column.getIndex()] = new ColumnWriter(column, JsonNode::asDouble, value -> pageBuilder.setDouble(column, (Double) value));
             }
         });
-
-        pageBuilder.addRecord();
+        return writers;
     }
 
     /*
@@ -131,4 +218,41 @@ public class RecordImporter
         }
         return result;
     }
+
+    private class ColumnWriter
+    {
+        private final Column column;
+        private final String name;
+        private final Function<JsonNode, Object> converter;
+        private final Consumer<Object> setter;
+
+        ColumnWriter(final Column column, final Function<JsonNode, Object> converter, final Consumer<Object> setter)
+        {
+            this.column = column;
+            this.name = column.getName();
+            this.converter = converter;
+            this.setter = setter;
+        }
+
+        /**
+         * @return the value to set, null for a null column
+         */
+        Object convert(final JsonNode record)
+        {
+            final JsonNode data = record.get(name);
+            if (ZendeskUtils.isNull(data)) {
+                return null;
+            }
+            return converter.apply(data);
+        }
+
+        void write(final Object value)
+        {
+            if (value == null) {
+                pageBuilder.setNull(column);
+                return;
+            }
+            setter.accept(value);
+        }
+    }
 }
@@ -11,11 +11,14 @@ import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
 import org.embulk.input.zendesk.models.AuthenticationMethod;
+import org.embulk.input.zendesk.models.DedupStrategy;
+import org.embulk.input.zendesk.models.HttpEngine;
 import org.embulk.input.zendesk.models.Target;
 import org.embulk.input.zendesk.services.ZendeskChatService;
 import org.embulk.input.zendesk.services.ZendeskCursorBasedService;
 import org.embulk.input.zendesk.services.ZendeskCustomObjectService;
 import org.embulk.input.zendesk.services.ZendeskNPSService;
+import org.embulk.input.zendesk.services.ZendeskNormalServices;
 import org.embulk.input.zendesk.services.ZendeskService;
 import org.embulk.input.zendesk.services.ZendeskSupportAPIService;
 import org.embulk.input.zendesk.services.ZendeskUserEventService;
@@ -57,6 +60,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.regex.Pattern;
 
@@ -114,6 +118,90 @@ public class ZendeskInputPlugin
         @ConfigDefault("60")
         int getMaxRetryWaitSec();
 
+        @Min(0)
+        @Max(90)
+        @Config("rate_limit_safety_margin")
+        @ConfigDefault("10")
+        int getRateLimitSafetyMargin();
+
+        @Config("http_engine")
+        @ConfigDefault("\"sync\"")
+        HttpEngine getHttpEngine();
+
+        @Min(1)
+        @Max(1000)
+        @Config("max_in_flight_requests")
+        @ConfigDefault("100")
+        int getMaxInFlightRequests();
+
+        @Min(1)
+        @Max(3600)
+        @Config("connect_timeout_sec")
+        @ConfigDefault("240")
+        int getConnectTimeoutSec();
+
+        @Min(1)
+        @Max(3600)
+        @Config("read_timeout_sec")
+        @ConfigDefault("300")
+        int getReadTimeoutSec();
+
+        @Min(0)
+        @Max(86400)
+        @Config("request_timeout_sec")
+        @ConfigDefault("0")
+        int getRequestTimeoutSec();
+
+        @Config("coalesce_requests")
+        @ConfigDefault("true")
+        boolean getCoalesceRequests();
+
+        @Min(0)
+        @Max(3600)
+        @Config("response_cache_ttl_sec")
+        @ConfigDefault("2")
+        int getResponseCacheTtlSec();
+
+        @Config("hedge_requests")
+        @ConfigDefault("false")
+        boolean getHedgeRequests();
+
+        @Min(50)
+        @Max(99)
+        @Config("hedge_percentile")
+        @ConfigDefault("95")
+        int getHedgePercentile();
+
+        @Min(0)
+        @Max(10)
+        @Config("prefetch_depth")
+        @ConfigDefault("0")
+        int getPrefetchDepth();
+
+        @Min(1)
+        @Max(100)
+        @Config("incremental_shards")
+        @ConfigDefault("1")
+        int getIncrementalShards();
+
+        // End of the time range split between the shards, fixed by the transaction so that every task splits the same range.
+        // Not a config option, only set in the task
+        Optional<Long> getShardedEndTime();
+
+        void setShardedEndTime(Optional<Long> shardedEndTime);
+
+        @Min(1)
+        @Max(100)
+        @Config("include_threads")
+        @ConfigDefault("10")
+        int getIncludeThreads();
+
+        @Min(1)
+        @Max(65536)
+        @Config("max_pending_records_mb")
+        @ConfigDefault("64")
+        int getMaxPendingRecordsMb();
+
         @Config("incremental")
         @ConfigDefault("true")
         boolean getIncremental();
@@ -122,10 +210,44 @@ public class ZendeskInputPlugin
         @ConfigDefault("[]")
         List<String> getIncludes();
 
+        @Config("sideload_includes")
+        @ConfigDefault("false")
+        boolean getSideloadIncludes();
+
+        @Min(1)
+        @Max(1000)
+        @Config("include_max_pages")
+        @ConfigDefault("10")
+        int getIncludeMaxPages();
+
+        @Config("include_cache_dir")
+        @ConfigDefault("null")
+        Optional<String> getIncludeCacheDir();
+
+        @Min(1)
+        @Max(1048576)
+        @Config("include_cache_max_mb")
+        @ConfigDefault("1024")
+        int getIncludeCacheMaxMb();
+
+        @Config("prune_includes")
+        @ConfigDefault("true")
+        boolean getPruneIncludes();
+
         @Config("dedup")
         @ConfigDefault("true")
         boolean getDedup();
 
+        @Config("dedup_strategy")
+        @ConfigDefault("\"all\"")
+        DedupStrategy getDedupStrategy();
+
+        @Min(1)
+        @Max(65536)
+        @Config("dedup_memory_limit_mb")
+        @ConfigDefault("256")
+        int getDedupMemoryLimitMb();
+
         @Config("app_marketplace_integration_name")
         @ConfigDefault("null")
         Optional<String> getAppMarketPlaceIntegrationName();
@@ -168,8 +290,6 @@ public class ZendeskInputPlugin
 
     private ZendeskService zendeskService;
 
-    private RecordImporter recordImporter;
-
     private static final Logger logger = LoggerFactory.getLogger(ZendeskInputPlugin.class);
 
     public static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder()
@@ -200,6 +320,19 @@ public class ZendeskInputPlugin
                 taskCount = ZendeskUtils.numberToSplitWithHintingInTask(result.get(ZendeskConstants.Field.COUNT).asInt());
             }
         }
+
+        // For incremental target, we can split the time range into windows, one task per window
+        task.setShardedEndTime(Optional.empty());
+        if (!Exec.isPreview() && task.getIncrementalShards() > 1 && isShardable(getZendeskService(task))) {
+            // Required by validateTime
+            final long startTime = ZendeskDateUtils.getStartTime(task.getStartTime().get());
+            final long endTime = task.getEndTime().map(ZendeskDateUtils::isoToEpochSecond).orElse(Instant.now().getEpochSecond());
+            if (endTime >= startTime) {
+                task.setShardedEndTime(Optional.of(endTime));
+                taskCount = ZendeskUtils.numberOfShards(startTime, endTime, task.getIncrementalShards());
+                logger.info("Split the incremental export from '{}' to '{}' into '{}' shards", startTime, endTime, taskCount);
+            }
+        }
         return resume(task.toTaskSource(), schema, taskCount, control);
     }
 
@@ -236,7 +369,10 @@ public class ZendeskInputPlugin
         }
 
         try (final PageBuilder pageBuilder = getPageBuilder(schema, output)) {
-            final TaskReport taskReport = getZendeskService(task).addRecordToImporter(taskIndex, getRecordImporter(schema, pageBuilder));
+            final RecordImporter recordImporter = new RecordImporter(schema, pageBuilder);
+            final TaskReport taskReport = getZendeskService(task).addRecordToImporter(taskIndex, recordImporter);
+            recordImporter.finish();
+            recordImporter.addStatsToTaskReport(taskReport);
             pageBuilder.finish();
             return taskReport;
         }
@@ -265,28 +401,39 @@ public class ZendeskInputPlugin
         final ConfigDiff configDiff = CONFIG_MAPPER_FACTORY.newConfigDiff();
 
         if (!taskReports.isEmpty() && task.getIncremental()) {
-            final TaskReport taskReport = taskReports.get(0);
-            if (taskReport.has(ZendeskConstants.Field.START_TIME)) {
-                final Long startTime = taskReport.get(Long.class, ZendeskConstants.Field.START_TIME);
-                if (startTime != null) {
-                    final OffsetDateTime offsetDateTime = OffsetDateTime.ofInstant(Instant.ofEpochSecond(startTime), ZoneOffset.UTC);
-                    configDiff.set(ZendeskConstants.Field.START_TIME,
-                        offsetDateTime.format(DateTimeFormatter.ofPattern(ZendeskConstants.Misc.RUBY_TIMESTAMP_FORMAT_INPUT)));
-                }
+            // Each shard reports the end of its own window, the next run starts after the latest one
+            final Optional<Long> startTime = getLatestTime(taskReports, ZendeskConstants.Field.START_TIME);
+            if (startTime.isPresent()) {
+                final OffsetDateTime offsetDateTime = OffsetDateTime.ofInstant(Instant.ofEpochSecond(startTime.get()), ZoneOffset.UTC);
+                configDiff.set(ZendeskConstants.Field.START_TIME,
+                    offsetDateTime.format(DateTimeFormatter.ofPattern(ZendeskConstants.Misc.RUBY_TIMESTAMP_FORMAT_INPUT)));
             }
 
-            if (taskReport.has(ZendeskConstants.Field.END_TIME)) {
-                final Long endTime = taskReport.get(Long.class, ZendeskConstants.Field.END_TIME);
-                if (endTime != null) {
-                    final OffsetDateTime offsetDateTime = OffsetDateTime.ofInstant(Instant.ofEpochSecond(endTime), ZoneOffset.UTC);
-                    configDiff.set(ZendeskConstants.Field.END_TIME,
-                        offsetDateTime.format(DateTimeFormatter.ofPattern(ZendeskConstants.Misc.RUBY_TIMESTAMP_FORMAT_INPUT)));
-                }
+            final Optional<Long> endTime = getLatestTime(taskReports, ZendeskConstants.Field.END_TIME);
+            if (endTime.isPresent()) {
+                final OffsetDateTime offsetDateTime = OffsetDateTime.ofInstant(Instant.ofEpochSecond(endTime.get()), ZoneOffset.UTC);
+                configDiff.set(ZendeskConstants.Field.END_TIME,
+                    offsetDateTime.format(DateTimeFormatter.ofPattern(ZendeskConstants.Misc.RUBY_TIMESTAMP_FORMAT_INPUT)));
             }
         }
         return configDiff;
     }
 
+    private static Optional<Long> getLatestTime(final List<TaskReport> taskReports, final String field)
+    {
+        return taskReports.stream()
+                .filter(taskReport -> taskReport.has(field))
+                .map(taskReport -> taskReport.get(Long.class, field))
+                .filter(Objects::nonNull)
+                .max(Long::compare);
+    }
+
+    private static boolean isShardable(final ZendeskService zendeskService)
+    {
+        return zendeskService.isSupportIncremental()
+                && (zendeskService instanceof ZendeskNormalServices || zendeskService instanceof ZendeskCursorBasedService);
+    }
+
     private JsonNode buildColumns(final PluginTask task)
     {
         JsonNode jsonNode = getZendeskService(task).getDataFromPath("", 0, true, 0);
@@ -476,14 +623,6 @@ public class ZendeskInputPlugin
         }
     }
 
-    private RecordImporter getRecordImporter(Schema schema, PageBuilder pageBuilder)
-    {
-        if (recordImporter == null) {
-            recordImporter = new RecordImporter(schema, pageBuilder);
-        }
-        return recordImporter;
-    }
-
     private void validateInputTask(PluginTask task)
     {
         validateAppMarketPlace(task.getAppMarketPlaceIntegrationName().isPresent(),
@@ -586,6 +725,11 @@ public class ZendeskInputPlugin
                 && ZendeskDateUtils.getStartTime(task.getStartTime().get()) > ZendeskDateUtils.isoToEpochSecond(task.getEndTime().get())) {
                 throw new ConfigException("End Time should be later or equal than Start Time");
             }
+
+            // Split from 1970, nearly every record would be in the last windows
+            if (task.getIncrementalShards() > 1 && !task.getStartTime().isPresent() && isShardable(getZendeskService(task))) {
+                throw new ConfigException("Start Time is required to split the incremental export into incremental_shards");
+            }
         }
     }
 
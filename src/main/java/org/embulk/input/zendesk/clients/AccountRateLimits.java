@@ -0,0 +1,96 @@
+package org.embulk.input.zendesk.clients;
+
+import com.google.common.hash.Hashing;
+import org.embulk.input.zendesk.ZendeskInputPlugin.PluginTask;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rate limit state of one Zendesk account, shared by every task of the JVM importing from it.
+ * Every {@link EndpointType} has its own limiter, throttle gate and latency tracker.
+ */
+public class AccountRateLimits
+{
+    private static final ConcurrentMap<String, AccountRateLimits> registry = new ConcurrentHashMap<>();
+
+    private final Map<EndpointType, AdaptiveRateLimiter> rateLimiters = new EnumMap<>(EndpointType.class);
+    private final Map<EndpointType, ThrottleGate> throttleGates = new EnumMap<>(EndpointType.class);
+    private final Map<EndpointType, LatencyTracker> latencyTrackers = new EnumMap<>(EndpointType.class);
+
+    private AccountRateLimits(final int safetyMarginPercent)
+    {
+        for (final EndpointType endpointType : EndpointType.values()) {
+            rateLimiters.put(endpointType, endpointType.newRateLimiter(safetyMarginPercent));
+            throttleGates.put(endpointType, new ThrottleGate());
+            latencyTrackers.put(endpointType, new LatencyTracker());
+        }
+    }
+
+    public static AccountRateLimits of(final PluginTask task)
+    {
+        return registry.computeIfAbsent(buildKey(task), key -> new AccountRateLimits(task.getRateLimitSafetyMargin()));
+    }
+
+    public AdaptiveRateLimiter getRateLimiter(final EndpointType endpointType)
+    {
+        return rateLimiters.get(endpointType);
+    }
+
+    /**
+     * Take a permit of every limiter without waiting, or none of them.
+     *
+     * @return 0 if the permits are taken, otherwise the milliseconds to wait before trying again
+     */
+    public long tryAcquire(final List<EndpointType> endpointTypes)
+    {
+        for (int i = 0; i < endpointTypes.size(); i++) {
+            final long waitMillis = getRateLimiter(endpointTypes.get(i)).tryAcquire();
+            if (waitMillis > 0) {
+                // The request isn't sent, e.g. the scarce incremental export budget must not be spent for nothing
+                for (int j = 0; j < i; j++) {
+                    getRateLimiter(endpointTypes.get(j)).release();
+                }
+                return waitMillis;
+            }
+        }
+        return 0;
+    }
+
+    public ThrottleGate getThrottleGate(final EndpointType endpointType)
+    {
+        return throttleGates.get(endpointType);
+    }
+
+    public LatencyTracker getLatencyTracker(final EndpointType endpointType)
+    {
+        return latencyTrackers.get(endpointType);
+    }
+
+    /**
+     * @return the identity of the account and credential of the task, without any secret
+     */
+    public static String buildKey(final PluginTask task)
+    {
+        String loginUrl = task.getLoginUrl().trim().toLowerCase(Locale.ENGLISH);
+        while (loginUrl.endsWith("/")) {
+            loginUrl = loginUrl.substring(0, loginUrl.length() - 1);
+        }
+
+        final String identity;
+        switch (task.getAuthenticationMethod()) {
+        case OAUTH:
+            // Don't keep the token itself around, only something that tells two tokens apart
+            identity = Hashing.sha256().hashString(task.getAccessToken().orElse(""), StandardCharsets.UTF_8).toString();
+            break;
+        default:
+            identity = task.getUsername().orElse("");
+        }
+        return loginUrl + " " + task.getAuthenticationMethod() + " " + identity;
+    }
+}
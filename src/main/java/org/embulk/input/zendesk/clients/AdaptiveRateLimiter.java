@@ -0,0 +1,216 @@
+package org.embulk.input.zendesk.clients;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.embulk.spi.DataException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rate limiter driven by the Zendesk rate limit headers.
+ *
+ * The permit rate is recomputed from the remaining budget of every response, keeping a share of the budget
+ * for other integrations on the same account. Lower targets are applied right away, higher ones are approached smoothly.
+ */
+public class AdaptiveRateLimiter
+{
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+    private static final double DEFAULT_WINDOW_SECONDS = 60;
+    // Never stall completely, the next response tells us when the budget is back
+    private static final double MINIMUM_RATE = 0.1;
+    private static final double RAISE_SMOOTHING = 0.3;
+    private static final double RATE_CHANGE_THRESHOLD = 0.01;
+    private static final List<String> ENDPOINT_HEADER_KEYS = Arrays.asList("total", "remaining", "resets");
+
+    private final double safetyMargin;
+    private final String endpointHeader;
+    private RateLimiter rateLimiter;
+    private double limitPerMinute;
+    // Permits taken for a request that wasn't sent, given to the next ones first
+    private int releasedPermits;
+
+    public AdaptiveRateLimiter(final int safetyMarginPercent)
+    {
+        this(safetyMarginPercent, null, 0);
+    }
+
+    /**
+     * @param endpointHeader header announcing the budget of an endpoint specific limit, e.g. "total=10; remaining=9; resets=48".
+     *                       The account wide headers are used when null.
+     * @param defaultLimitPerMinute limit applied until a response tells otherwise, unlimited when 0
+     */
+    public AdaptiveRateLimiter(final int safetyMarginPercent, final String endpointHeader, final double defaultLimitPerMinute)
+    {
+        this.safetyMargin = safetyMarginPercent / 100.0;
+        this.endpointHeader = endpointHeader;
+        this.limitPerMinute = defaultLimitPerMinute;
+        if (defaultLimitPerMinute > 0) {
+            this.rateLimiter = RateLimiter.create(defaultLimitPerMinute * (1 - safetyMargin) / DEFAULT_WINDOW_SECONDS);
+        }
+    }
+
+    /**
+     * @return the seconds spent waiting for a permit
+     */
+    public double acquire()
+    {
+        final RateLimiter limiter;
+        synchronized (this) {
+            if (releasedPermits > 0) {
+                releasedPermits--;
+                return 0;
+            }
+            limiter = rateLimiter;
+        }
+        return limiter == null ? 0 : limiter.acquire();
+    }
+
+    /**
+     * Take a permit without waiting.
+     *
+     * @return 0 if the permit is taken, otherwise the milliseconds to wait before trying again
+     */
+    public long tryAcquire()
+    {
+        final RateLimiter limiter;
+        synchronized (this) {
+            if (releasedPermits > 0) {
+                releasedPermits--;
+                return 0;
+            }
+            limiter = rateLimiter;
+        }
+        if (limiter == null || limiter.tryAcquire()) {
+            return 0;
+        }
+        return (long) Math.ceil(1000 / limiter.getRate());
+    }
+
+    /**
+     * Hand back a permit taken by {@link #tryAcquire} for a request that won't be sent.
+     */
+    public synchronized void release()
+    {
+        if (rateLimiter != null) {
+            releasedPermits++;
+        }
+    }
+
+    /**
+     * Adjust the permit rate to the budget announced by the response.
+     *
+     * @return true if the rate has been lowered
+     */
+    public synchronized boolean update(final HttpResponse response)
+    {
+        final double[] budget = endpointHeader == null ? parseAccountHeaders(response) : parseEndpointHeader(response);
+        final double limit = budget[0];
+        final double remaining = budget[1];
+        final double reset = budget[2];
+        if (limit > 0) {
+            limitPerMinute = limit;
+        }
+        if (limitPerMinute <= 0) {
+            return false;
+        }
+
+        final double reservedPerMinute = limitPerMinute * safetyMargin;
+        final double nominalRate = (limitPerMinute - reservedPerMinute) / DEFAULT_WINDOW_SECONDS;
+        double targetRate = nominalRate;
+
+        if (remaining >= 0) {
+            final double windowSeconds = reset > 0 ? reset : DEFAULT_WINDOW_SECONDS;
+            final double usable = remaining - reservedPerMinute * windowSeconds / DEFAULT_WINDOW_SECONDS;
+            targetRate = Math.min(nominalRate, usable / windowSeconds);
+        }
+        targetRate = Math.max(MINIMUM_RATE, targetRate);
+
+        if (rateLimiter == null) {
+            logger.info("Permits per second " + targetRate);
+            rateLimiter = RateLimiter.create(targetRate);
+            return false;
+        }
+
+        final double currentRate = rateLimiter.getRate();
+        final double newRate = targetRate < currentRate ? targetRate : currentRate + (targetRate - currentRate) * RAISE_SMOOTHING;
+        if (Math.abs(newRate - currentRate) / currentRate < RATE_CHANGE_THRESHOLD) {
+            return false;
+        }
+        rateLimiter.setRate(newRate);
+        if (newRate < currentRate) {
+            logger.info("Slow down to '{}' permits per second, remaining budget '{}'", newRate, remaining);
+            return true;
+        }
+        logger.debug("Speed up to '{}' permits per second", newRate);
+        return false;
+    }
+
+    @VisibleForTesting
+    synchronized double getRate()
+    {
+        return rateLimiter == null ? 0 : rateLimiter.getRate();
+    }
+
+    /**
+     * @return limit per minute, remaining requests and seconds until reset, -1 for the missing ones
+     */
+    private static double[] parseAccountHeaders(final HttpResponse response)
+    {
+        return new double[] {
+            parseHeader(response, "x-rate-limit", "ratelimit-limit"),
+            parseHeader(response, "x-rate-limit-remaining", "ratelimit-remaining"),
+            parseHeader(response, "ratelimit-reset", null)
+        };
+    }
+
+    private double[] parseEndpointHeader(final HttpResponse response)
+    {
+        final double[] budget = {-1, -1, -1};
+        final Header header = response.getFirstHeader(endpointHeader);
+        if (header == null) {
+            return budget;
+        }
+        for (final String pair : header.getValue().split(";")) {
+            final String[] keyValue = pair.split("=", 2);
+            if (keyValue.length != 2) {
+                continue;
+            }
+            final int index = ENDPOINT_HEADER_KEYS.indexOf(keyValue[0].trim().toLowerCase(Locale.ENGLISH));
+            if (index < 0) {
+                continue;
+            }
+            try {
+                budget[index] = Double.parseDouble(keyValue[1].trim());
+            }
+            catch (final NumberFormatException e) {
+                logger.warn("Ignore invalid {} header: '{}'", endpointHeader, header.getValue());
+                return new double[] {-1, -1, -1};
+            }
+        }
+        return budget;
+    }
+
+    private static double parseHeader(final HttpResponse response, final String name, final String fallbackName)
+    {
+        Header header = response.getFirstHeader(name);
+        if (header == null && fallbackName != null) {
+            header = response.getFirstHeader(fallbackName);
+        }
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Double.parseDouble(header.getValue().trim());
+        }
+        catch (final NumberFormatException e) {
+            throw new DataException("Error when parse " + header.getName() + ": '" + header.getValue() + "'");
+        }
+    }
+}
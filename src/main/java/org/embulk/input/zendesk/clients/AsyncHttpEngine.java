@@ -0,0 +1,221 @@
+package org.embulk.input.zendesk.clients;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.ContentInputStream;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+import org.embulk.config.ConfigException;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Non-blocking HTTP client shared by the JVM. A few IO reactor threads serve every in-flight request,
+ * the number of concurrent requests is bounded by the callers instead of by threads.
+ *
+ * The response is handed over as soon as its head is received, its body is streamed through a bounded buffer:
+ * the connection stops reading while the buffer is full, until the caller reads from it.
+ */
+class AsyncHttpEngine
+{
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static CloseableHttpAsyncClient httpAsyncClient;
+
+    private AsyncHttpEngine()
+    {
+    }
+
+    /**
+     * @param executor completes the future, the body is read by blocking calls which must not run on the IO reactor threads
+     */
+    static CompletableFuture<HttpResponse> execute(final HttpUriRequest request, final Executor executor)
+    {
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        final StreamingResponseConsumer consumer = new StreamingResponseConsumer(future, executor);
+        getSharedClient().execute(HttpAsyncMethods.create(request), consumer, new FutureCallback<HttpResponse>()
+        {
+            @Override
+            public void completed(final HttpResponse response)
+            {
+                // Without a body, the response is only handed over once complete
+                consumer.handOver(response);
+            }
+
+            @Override
+            public void failed(final Exception ex)
+            {
+                executor.execute(() -> future.completeExceptionally(ex));
+            }
+
+            @Override
+            public void cancelled()
+            {
+                executor.execute(() -> future.cancel(false));
+            }
+        });
+        return future;
+    }
+
+    private static synchronized CloseableHttpAsyncClient getSharedClient()
+    {
+        if (httpAsyncClient == null) {
+            // Daemon threads so that the client never keeps the JVM alive
+            final ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("zendesk-io-reactor-%d").setDaemon(true).build();
+            final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                    .setIoThreadCount(Math.max(2, Runtime.getRuntime().availableProcessors()))
+                    .setConnectTimeout(ZendeskRestClient.CONNECTION_TIME_OUT)
+                    .setSoKeepAlive(true)
+                    .build();
+            final PoolingNHttpClientConnectionManager connectionManager;
+            try {
+                connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig, threadFactory));
+            }
+            catch (final IOReactorException e) {
+                throw new ConfigException("Fail to start the async http engine", e);
+            }
+            connectionManager.setMaxTotal(ZendeskRestClient.MAX_CONNECTIONS_TOTAL);
+            connectionManager.setDefaultMaxPerRoute(ZendeskRestClient.MAX_CONNECTIONS_PER_ROUTE);
+
+            final RequestConfig config = RequestConfig.custom().setConnectTimeout(ZendeskRestClient.CONNECTION_TIME_OUT).setConnectionRequestTimeout(ZendeskRestClient.CONNECTION_TIME_OUT).build();
+            httpAsyncClient = HttpAsyncClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy(ZendeskRestClient.buildKeepAliveStrategy())
+                    .setDefaultRequestConfig(config)
+                    .setThreadFactory(threadFactory)
+                    .build();
+            httpAsyncClient.start();
+        }
+        return httpAsyncClient;
+    }
+
+    private static class StreamingResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse>
+    {
+        private final CompletableFuture<HttpResponse> future;
+        private final Executor executor;
+        private HttpResponse response;
+        private SharedInputBuffer buffer;
+        private volatile boolean isHandedOver;
+        private volatile boolean isAborted;
+
+        StreamingResponseConsumer(final CompletableFuture<HttpResponse> future, final Executor executor)
+        {
+            this.future = future;
+            this.executor = executor;
+        }
+
+        @Override
+        protected void onResponseReceived(final HttpResponse response)
+        {
+            this.response = response;
+        }
+
+        @Override
+        protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType)
+        {
+            buffer = new SharedInputBuffer(STREAM_BUFFER_SIZE);
+            final BasicHttpEntity streamedEntity = new BasicHttpEntity();
+            streamedEntity.setContent(new StreamedContent(buffer, this));
+            streamedEntity.setContentLength(entity.getContentLength());
+            streamedEntity.setContentType(entity.getContentType());
+            streamedEntity.setContentEncoding(entity.getContentEncoding());
+            response.setEntity(streamedEntity);
+            handOver(response);
+        }
+
+        @Override
+        protected void onContentReceived(final ContentDecoder decoder, final IOControl ioControl)
+            throws IOException
+        {
+            // Suspends the input of the connection while the buffer is full
+            buffer.consumeContent(decoder, ioControl);
+        }
+
+        @Override
+        protected HttpResponse buildResult(final HttpContext context)
+        {
+            return response;
+        }
+
+        @Override
+        protected void releaseResources()
+        {
+            // Released with a result once complete, the buffer has then seen the end of the stream
+            if (getResult() == null) {
+                isAborted = true;
+                if (buffer != null) {
+                    buffer.shutdown();
+                }
+            }
+        }
+
+        boolean isAborted()
+        {
+            return isAborted;
+        }
+
+        void handOver(final HttpResponse response)
+        {
+            if (!isHandedOver) {
+                isHandedOver = true;
+                executor.execute(() -> future.complete(response));
+            }
+        }
+    }
+
+    /**
+     * A body cut by a failure or an abort doesn't look like a complete one.
+     */
+    private static class StreamedContent extends ContentInputStream
+    {
+        private final StreamingResponseConsumer consumer;
+
+        StreamedContent(final SharedInputBuffer buffer, final StreamingResponseConsumer consumer)
+        {
+            super(buffer);
+            this.consumer = consumer;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            return checkEndOfStream(super.read(b, off, len));
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            return checkEndOfStream(super.read());
+        }
+
+        private int checkEndOfStream(final int read)
+            throws IOException
+        {
+            if (read == -1 && consumer.isAborted()) {
+                throw new IOException("Response aborted before its end", consumer.getException());
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.embulk.input.zendesk.clients;
+
+import com.google.common.io.CountingInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Count the bytes read from the wrapped entity. The content is meant to be read once.
+ */
+class CountingEntity extends HttpEntityWrapper
+{
+    private CountingInputStream inputStream;
+
+    CountingEntity(final HttpEntity wrappedEntity)
+    {
+        super(wrappedEntity);
+    }
+
+    @Override
+    public InputStream getContent()
+        throws IOException
+    {
+        if (inputStream == null) {
+            inputStream = new CountingInputStream(super.getContent());
+        }
+        return inputStream;
+    }
+
+    long getByteCount()
+    {
+        return inputStream == null ? 0 : inputStream.getCount();
+    }
+}
@@ -0,0 +1,76 @@
+package org.embulk.input.zendesk.clients;
+
+import java.net.URI;
+import java.util.Locale;
+
+/**
+ * Group of endpoints sharing a rate limit.
+ */
+public enum EndpointType
+{
+    // Account wide limit of the Support API
+    GENERIC(false, null, 0),
+    // Incremental exports are limited to 10 requests per minute, 30 with the High Volume API add-on
+    INCREMENTAL(true, "zendesk-ratelimit-incremental-exports", 10),
+    SEARCH(true, null, 0),
+    // Chat and Sunshine are limited apart from the Support API
+    CHAT(false, null, 0),
+    SUNSHINE(false, null, 0);
+
+    private final boolean countedInGeneric;
+    private final String endpointHeader;
+    private final double defaultLimitPerMinute;
+
+    EndpointType(final boolean countedInGeneric, final String endpointHeader, final double defaultLimitPerMinute)
+    {
+        this.countedInGeneric = countedInGeneric;
+        this.endpointHeader = endpointHeader;
+        this.defaultLimitPerMinute = defaultLimitPerMinute;
+    }
+
+    /**
+     * @return true if the requests also consume the account wide limit
+     */
+    public boolean isCountedInGeneric()
+    {
+        return countedInGeneric;
+    }
+
+    public AdaptiveRateLimiter newRateLimiter(final int safetyMarginPercent)
+    {
+        return new AdaptiveRateLimiter(safetyMarginPercent, endpointHeader, defaultLimitPerMinute);
+    }
+
+    public static EndpointType of(final String url)
+    {
+        String path;
+        try {
+            path = URI.create(url).getPath();
+        }
+        catch (final IllegalArgumentException e) {
+            path = url;
+        }
+        if (path == null) {
+            return GENERIC;
+        }
+        path = path.toLowerCase(Locale.ENGLISH);
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+
+        // /api/v2/chat/ for the new Chat API, /api/v2/chats for the Zopim one, whose search isn't a Support search
+        if (path.matches("/api/v2/chats?(/.*|\\.json)?")) {
+            return CHAT;
+        }
+        if (path.startsWith("/api/sunshine/") || path.matches("/api/v2/users/[^/]+/events.*")) {
+            return SUNSHINE;
+        }
+        if (path.contains("/incremental/")) {
+            return INCREMENTAL;
+        }
+        if (path.contains("/search")) {
+            return SEARCH;
+        }
+        return GENERIC;
+    }
+}
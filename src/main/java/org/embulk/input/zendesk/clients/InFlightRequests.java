@@ -0,0 +1,80 @@
+package org.embulk.input.zendesk.clients;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bound the asynchronous requests started and not finished yet. A request past the bound is queued instead of blocking
+ * its caller, which may well be the thread completing another request, and started once a request finishes.
+ */
+class InFlightRequests
+{
+    private static final long IDLE_THREAD_TIME_OUT_SEC = 60;
+
+    private final int maxRequests;
+    private final Queue<Runnable> queued = new ArrayDeque<>();
+    private final ThreadPoolExecutor executor;
+    private int requests;
+
+    InFlightRequests(final int maxRequests)
+    {
+        this.maxRequests = maxRequests;
+        this.executor = new ThreadPoolExecutor(maxRequests, maxRequests, IDLE_THREAD_TIME_OUT_SEC, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("zendesk-in-flight-request-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Threads for the requests which block while in flight, never more than the bound.
+     */
+    Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Run the start of the request now when the bound allows it, otherwise once a request finishes.
+     * The request must call {@link #finish} once done, before its result is handed to anyone.
+     */
+    void start(final Runnable start)
+    {
+        synchronized (this) {
+            if (requests >= maxRequests) {
+                queued.add(start);
+                return;
+            }
+            requests++;
+        }
+        start.run();
+    }
+
+    void finish()
+    {
+        final Runnable next;
+        synchronized (this) {
+            next = queued.poll();
+            if (next == null) {
+                requests--;
+                return;
+            }
+        }
+        // The finished request hands its place over to the next one
+        next.run();
+    }
+
+    synchronized int getRequests()
+    {
+        return requests;
+    }
+
+    synchronized int getQueued()
+    {
+        return queued.size();
+    }
+}
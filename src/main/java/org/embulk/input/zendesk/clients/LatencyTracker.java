@@ -0,0 +1,45 @@
+package org.embulk.input.zendesk.clients;
+
+import java.util.Arrays;
+
+/**
+ * Keep the latest response latencies of a group of endpoints to estimate their percentiles.
+ */
+public class LatencyTracker
+{
+    private static final int WINDOW_SIZE = 256;
+
+    private final long[] latencies = new long[WINDOW_SIZE];
+    private int next;
+    private int size;
+
+    public synchronized void record(final long latencyMillis)
+    {
+        latencies[next] = latencyMillis;
+        next = (next + 1) % WINDOW_SIZE;
+        size = Math.min(size + 1, WINDOW_SIZE);
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds, -1 when nothing is recorded yet
+     */
+    public long percentile(final int percentile)
+    {
+        final long[] sorted;
+        synchronized (this) {
+            if (size == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(latencies, size);
+        }
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
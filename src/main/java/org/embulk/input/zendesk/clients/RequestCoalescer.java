@@ -0,0 +1,130 @@
+package org.embulk.input.zendesk.clients;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Share one request between the callers asking for the same key at the same time, and its result with the ones
+ * asking again shortly after. Failures are shared with the callers already waiting only, the next caller retries.
+ * Results are shared as is, a mutable result must be copied before it is handed to each caller.
+ */
+public class RequestCoalescer<T>
+{
+    private final Map<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+    // In completion order, the oldest results expire or are evicted first
+    private final LinkedHashMap<String, Completed<T>> completed = new LinkedHashMap<>();
+    private final int maxCompleted;
+
+    public RequestCoalescer(final int maxCompleted)
+    {
+        this.maxCompleted = maxCompleted;
+    }
+
+    /**
+     * @param ttlMillis how long a result is served again, 0 to only share in-flight requests
+     * @param request sends the request, called only when no result is shared
+     */
+    public Result<T> get(final String key, final long ttlMillis, final Supplier<CompletableFuture<T>> request)
+    {
+        if (ttlMillis > 0) {
+            final T cached = getCompleted(key, ttlMillis);
+            if (cached != null) {
+                return new Result<>(CompletableFuture.completedFuture(cached), Source.CACHE);
+            }
+        }
+
+        final CompletableFuture<T> created = new CompletableFuture<>();
+        final CompletableFuture<T> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            return new Result<>(existing, Source.IN_FLIGHT);
+        }
+
+        try {
+            request.get().whenComplete((result, error) -> {
+                if (error == null && ttlMillis > 0) {
+                    putCompleted(key, result);
+                }
+                inFlight.remove(key, created);
+                if (error == null) {
+                    created.complete(result);
+                }
+                else {
+                    created.completeExceptionally(error);
+                }
+            });
+        }
+        catch (final RuntimeException e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return new Result<>(created, Source.REQUEST);
+    }
+
+    private synchronized T getCompleted(final String key, final long ttlMillis)
+    {
+        final long now = System.currentTimeMillis();
+        final Iterator<Completed<T>> oldest = completed.values().iterator();
+        while (oldest.hasNext()) {
+            if (now - oldest.next().completedMillis <= ttlMillis) {
+                break;
+            }
+            oldest.remove();
+        }
+        final Completed<T> entry = completed.get(key);
+        return entry != null ? entry.result : null;
+    }
+
+    private synchronized void putCompleted(final String key, final T result)
+    {
+        completed.remove(key);
+        completed.put(key, new Completed<>(result, System.currentTimeMillis()));
+        if (completed.size() > maxCompleted) {
+            final Iterator<Completed<T>> oldest = completed.values().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    public enum Source
+    {
+        REQUEST, IN_FLIGHT, CACHE
+    }
+
+    public static class Result<T>
+    {
+        private final CompletableFuture<T> future;
+        private final Source source;
+
+        Result(final CompletableFuture<T> future, final Source source)
+        {
+            this.future = future;
+            this.source = source;
+        }
+
+        public CompletableFuture<T> getFuture()
+        {
+            return future;
+        }
+
+        public Source getSource()
+        {
+            return source;
+        }
+    }
+
+    private static class Completed<T>
+    {
+        private final T result;
+        private final long completedMillis;
+
+        Completed(final T result, final long completedMillis)
+        {
+            this.result = result;
+            this.completedMillis = completedMillis;
+        }
+    }
+}
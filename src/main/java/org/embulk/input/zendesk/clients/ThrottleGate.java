@@ -0,0 +1,92 @@
+package org.embulk.input.zendesk.clients;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gate shared by every thread sending requests to the same account.
+ *
+ * A 429 closes it for the Retry-After period so that the other threads stop spending quota, then requests are
+ * let through again one by one, with the spacing shrinking to nothing over the ramp-up period. The first spacing
+ * is a fraction of the ramp-up period, so that about the same number of requests is let through whatever its length.
+ */
+public class ThrottleGate
+{
+    private static final long MAX_RAMP_UP_MILLIS = 10000;
+    private static final long RAMP_UP_STEPS = 20;
+
+    private long reopenAt;
+    private long rampUpMillis;
+    private long nextAdmissionAt;
+
+    /**
+     * @return true if the gate was open before
+     */
+    public boolean closeFor(final long millis)
+    {
+        return closeFor(millis, System.currentTimeMillis());
+    }
+
+    synchronized boolean closeFor(final long millis, final long now)
+    {
+        final boolean wasOpen = now >= reopenAt;
+        final long until = now + millis;
+        if (until > reopenAt) {
+            reopenAt = until;
+            rampUpMillis = Math.min(millis, MAX_RAMP_UP_MILLIS);
+            nextAdmissionAt = until;
+        }
+        return wasOpen;
+    }
+
+    /**
+     * Block until the caller is allowed to send a request.
+     *
+     * @return the milliseconds spent waiting
+     */
+    public long await()
+    {
+        long waited = 0;
+        while (true) {
+            final long closedMillis = getClosedMillis();
+            if (closedMillis > 0) {
+                Uninterruptibles.sleepUninterruptibly(closedMillis, TimeUnit.MILLISECONDS);
+                waited += closedMillis;
+                continue;
+            }
+            final long slotMillis = reserveSlot(System.currentTimeMillis());
+            if (slotMillis > 0) {
+                Uninterruptibles.sleepUninterruptibly(slotMillis, TimeUnit.MILLISECONDS);
+                waited += slotMillis;
+            }
+            // Another 429 may have closed the gate in the meantime
+            if (getClosedMillis() <= 0) {
+                return waited;
+            }
+        }
+    }
+
+    /**
+     * @return the milliseconds until the gate reopens, 0 or less when it is open
+     */
+    public synchronized long getClosedMillis()
+    {
+        return reopenAt - System.currentTimeMillis();
+    }
+
+    /**
+     * @return the milliseconds to wait for the reserved slot
+     */
+    synchronized long reserveSlot(final long now)
+    {
+        final long rampUpElapsed = now - reopenAt;
+        if (rampUpElapsed < 0 || rampUpElapsed >= rampUpMillis) {
+            return 0;
+        }
+        // Take the next free slot, slots get closer as the ramp-up goes on
+        final long slot = Math.max(now, nextAdmissionAt);
+        nextAdmissionAt = slot + (rampUpMillis / RAMP_UP_STEPS) * (rampUpMillis - rampUpElapsed) / rampUpMillis;
+        return slot - now;
+    }
+}
@@ -6,19 +6,30 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
 import org.embulk.input.zendesk.ZendeskInputPlugin.PluginTask;
+import org.embulk.input.zendesk.models.HttpEngine;
 import org.embulk.input.zendesk.models.Target;
 import org.embulk.input.zendesk.models.ZendeskException;
 import org.embulk.input.zendesk.utils.ZendeskConstants;
@@ -31,19 +42,88 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import static org.apache.http.HttpHeaders.ACCEPT_ENCODING;
 import static org.apache.http.HttpHeaders.AUTHORIZATION;
 import static org.apache.http.protocol.HTTP.CONTENT_TYPE;
+import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER_FACTORY;
 
 public class ZendeskRestClient
 {
-    private static final int CONNECTION_TIME_OUT = 240000;
+    static final int CONNECTION_TIME_OUT = 240000;
+
+    // Connections are shared by every task and thread of the JVM, so the pool is sized to the largest executor we run
+    static final int MAX_CONNECTIONS_PER_ROUTE = ZendeskConstants.Misc.MAXIMUM_CONCURRENT_REQUESTS;
+    static final int MAX_CONNECTIONS_TOTAL = MAX_CONNECTIONS_PER_ROUTE * 2;
+    private static final long KEEP_ALIVE_MILLIS = 30000;
+    private static final long IDLE_CONNECTION_TIME_OUT_SEC = 30;
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+    private static final int MIN_LATENCY_SAMPLES_TO_HEDGE = 20;
+    private static final int MAX_CACHED_RESPONSES = 256;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50;
 
     private static final Logger logger = LoggerFactory.getLogger(ZendeskRestClient.class);
     private static final ObjectMapper objectMapper = new ObjectMapper();
-    private static RateLimiter rateLimiter;
+    private static PoolingHttpClientConnectionManager connectionManager;
+    // Threads only run the requests of doGetAsync, waiting between attempts happens on the scheduler
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("zendesk-retry-scheduler").setDaemon(true).build());
+    // Completes the responses of the non-blocking engine and races hedges, a blocking attempt of doGetAsync runs on the threads of its in-flight budget
+    private static final ExecutorService asyncRequestExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("zendesk-async-request-%d").setDaemon(true).build());
+    private static CloseableHttpClient httpClient;
+    // Per account and max_in_flight_requests, the tasks of a run share the budget of their account
+    private static final ConcurrentMap<String, InFlightRequests> inFlightRequests = new ConcurrentHashMap<>();
+    private static final EntityHandler<JsonNode> JSON_ENTITY_HANDLER = entity -> {
+        try (final InputStream inputStream = entity.getContent()) {
+            return objectMapper.readTree(inputStream);
+        }
+    };
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicInteger peakLeasedConnections = new AtomicInteger();
+    private final AtomicLong rateLimitSlowDowns = new AtomicLong();
+    private final AtomicLong rateLimitWaitMillis = new AtomicLong();
+    private final AtomicLong tooManyRequests = new AtomicLong();
+    private final AtomicLong pauseMillis = new AtomicLong();
+    private final AtomicLong timedOutRequests = new AtomicLong();
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong hedgesSkipped = new AtomicLong();
+    private final LatencyTracker latencies = new LatencyTracker();
+    private final AtomicLong compressedResponses = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong decompressedBytes = new AtomicLong();
+    // Blocking requests being sent, by sending thread, so that they can be aborted from another one
+    private final ConcurrentMap<Thread, HttpRequestBase> sendingRequests = new ConcurrentHashMap<>();
+    private final RequestCoalescer<String> textRequests = new RequestCoalescer<>(MAX_CACHED_RESPONSES);
+    private final RequestCoalescer<JsonNode> jsonRequests = new RequestCoalescer<>(MAX_CACHED_RESPONSES);
+    private final AtomicLong coalescedRequests = new AtomicLong();
+    private final AtomicLong cachedResponses = new AtomicLong();
     private Target target;
     private String loginURL;
 
@@ -56,6 +136,52 @@ public class ZendeskRestClient
     }
 
     public String doGet(final String url, final PluginTask task, final boolean isPreview)
+    {
+        if (!task.getCoalesceRequests()) {
+            return executeWithRetry(url, task, isPreview, EntityUtils::toString);
+        }
+        final CompletableFuture<String> response = coalesce(textRequests, url, task, () -> {
+            final CompletableFuture<String> request = new CompletableFuture<>();
+            try {
+                request.complete(executeWithRetry(url, task, isPreview, EntityUtils::toString));
+            }
+            catch (final RuntimeException e) {
+                request.completeExceptionally(e);
+            }
+            return request;
+        });
+        try {
+            return response.join();
+        }
+        catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DataException(e.getCause());
+        }
+    }
+
+    /**
+     * Stream the page at the url, each element of the targetJsonName array is handed to the consumer while the body is still downloading.
+     *
+     * @return the other top-level fields of the page
+     */
+    public JsonNode doGetRecords(final String url, final PluginTask task, final boolean isPreview, final String targetJsonName, final Consumer<JsonNode> consumer)
+    {
+        // Records already handed to the consumer are skipped when a broken download is retried
+        final AtomicInteger consumedRecords = new AtomicInteger();
+
+        return executeWithRetry(url, task, isPreview, entity -> {
+            try (final InputStream inputStream = entity.getContent()) {
+                return ZendeskUtils.streamListRecords(inputStream, targetJsonName, consumedRecords.get(), record -> {
+                    consumedRecords.incrementAndGet();
+                    consumer.accept(record);
+                });
+            }
+        });
+    }
+
+    private <T> T executeWithRetry(final String url, final PluginTask task, final boolean isPreview, final EntityHandler<T> entityHandler)
     {
         target = task.getTarget();
         loginURL = task.getLoginUrl();
@@ -66,12 +192,12 @@ public class ZendeskRestClient
                 .withInitialRetryWaitMillis(task.getRetryInitialWaitSec() * 1000)
                 .withMaxRetryWaitMillis(task.getMaxRetryWaitSec() * 1000)
                 .build()
-                .runInterruptible(new Retryable<String>() {
+                .runInterruptible(new Retryable<T>() {
                 @Override
-                public String call()
+                public T call()
                     throws Exception
                 {
-                    return sendGetRequest(url, task);
+                    return sendGetRequest(url, task, entityHandler);
                 }
 
                 @Override
@@ -93,7 +219,10 @@ public class ZendeskRestClient
                         if (retryAfter > 0 && retryAfter > (retryWait / 1000)) {
                             message = String.format("Retrying '%d'/'%d' after '%d' seconds. HTTP status code: '%s'", retryCount, retryLimit, retryAfter, ((ZendeskException) exception).getStatusCode());
                             logger.warn(message);
-                            Uninterruptibles.sleepUninterruptibly(retryAfter - (retryWait / 1000), TimeUnit.SECONDS);
+                            // Only a 429 closes the throttle gate, where the rest of the Retry-After period is spent
+                            if (!closesThrottleGate(((ZendeskException) exception).getStatusCode())) {
+                                Uninterruptibles.sleepUninterruptibly(retryAfter - (retryWait / 1000), TimeUnit.SECONDS);
+                            }
                         }
                         else {
                             message = String.format("Retrying '%d'/'%d' after '%d' seconds. HTTP status code: '%s'", retryCount, retryLimit, retryWait / 1000, ((ZendeskException) exception).getStatusCode());
@@ -113,49 +242,564 @@ public class ZendeskRestClient
             });
         }
         catch (final RetryGiveupException | InterruptedException e) {
-            if (e instanceof RetryGiveupException && e.getCause() != null && e.getCause() instanceof ZendeskException) {
-                throw new ConfigException("Status: '" + ((ZendeskException) (e.getCause())).getStatusCode() + "', error message: '" + e.getCause().getMessage() + "'", e.getCause());
+            if (e instanceof RetryGiveupException && (e.getCause() instanceof ZendeskException || e.getCause() instanceof DataException || e.getCause() instanceof ConfigException)) {
+                throw toGiveupException((Exception) e.getCause());
             }
             throw new ConfigException(e);
         }
     }
 
+    /**
+     * Same as {@link #doGet} but the backoff between retries is scheduled on a timer instead of sleeping in the calling thread.
+     */
+    public CompletableFuture<JsonNode> doGetAsync(final String url, final PluginTask task, final boolean isPreview)
+    {
+        if (!task.getCoalesceRequests()) {
+            return sendAsync(url, task, isPreview);
+        }
+        // The shared response is mutable, e.g. its elements are attached to records, each caller gets its own copy
+        return coalesce(jsonRequests, url, task, () -> sendAsync(url, task, isPreview)).thenApply(response -> (JsonNode) response.deepCopy());
+    }
+
+    /**
+     * Callers asking for the same url with the same credentials share the request and its response.
+     */
+    private <T> CompletableFuture<T> coalesce(final RequestCoalescer<T> coalescer, final String url, final PluginTask task, final Supplier<CompletableFuture<T>> request)
+    {
+        final RequestCoalescer.Result<T> result = coalescer.get(buildCredential(task) + " " + url, task.getResponseCacheTtlSec() * 1000L, request);
+        if (result.getSource() == RequestCoalescer.Source.IN_FLIGHT) {
+            coalescedRequests.incrementAndGet();
+        }
+        else if (result.getSource() == RequestCoalescer.Source.CACHE) {
+            cachedResponses.incrementAndGet();
+        }
+        return result.getFuture();
+    }
+
+    private CompletableFuture<JsonNode> sendAsync(final String url, final PluginTask task, final boolean isPreview)
+    {
+        target = task.getTarget();
+        loginURL = task.getLoginUrl();
+
+        // Bound the requests started and not finished yet, whatever the number of threads serving them.
+        // The place is given back before the caller sees the result, its callbacks may well send the next requests
+        final InFlightRequests inFlightRequests = getInFlightRequests(task);
+        final CompletableFuture<JsonNode> attempts = new CompletableFuture<>();
+        final CompletableFuture<JsonNode> future = new CompletableFuture<>();
+        attempts.whenComplete((result, error) -> {
+            inFlightRequests.finish();
+            if (error == null) {
+                future.complete(result);
+            }
+            else {
+                future.completeExceptionally(error);
+            }
+        });
+        inFlightRequests.start(() -> scheduleAttempt(url, task, isPreview, attempts, 1, 0));
+        return future;
+    }
+
+    private void scheduleAttempt(final String url, final PluginTask task, final boolean isPreview, final CompletableFuture<JsonNode> future, final int attempt, final long delayMillis)
+    {
+        // Don't hand the request to a thread which would only wait for the throttle gate to reopen
+        final long closedMillis = AccountRateLimits.of(task).getThrottleGate(EndpointType.of(url)).getClosedMillis();
+        final long delay = Math.max(delayMillis, closedMillis);
+        // With the blocking engine, an attempt holds its thread until the response is read
+        final Executor executor = task.getHttpEngine() == HttpEngine.ASYNC ? asyncRequestExecutor : getInFlightRequests(task).getExecutor();
+        final Runnable runAttempt = () -> executor.execute(() -> runAttempt(url, task, isPreview, future, attempt));
+        if (delay > 0) {
+            retryScheduler.schedule(runAttempt, delay, TimeUnit.MILLISECONDS);
+        }
+        else {
+            runAttempt.run();
+        }
+    }
+
+    private void runAttempt(final String url, final PluginTask task, final boolean isPreview, final CompletableFuture<JsonNode> future, final int attempt)
+    {
+        final CompletableFuture<JsonNode> attemptFuture;
+        if (task.getHttpEngine() == HttpEngine.ASYNC) {
+            final RequestLimits limits = new RequestLimits(url, task);
+            final long waitMillis = limits.tryAcquire();
+            if (waitMillis > 0) {
+                scheduleAttempt(url, task, isPreview, future, attempt, waitMillis);
+                return;
+            }
+            final HttpRequestBase request = createGetRequest(url, task);
+            final ScheduledFuture<?> requestTimeout = scheduleRequestTimeout(task, request);
+            logRequest(request);
+            final long startNanos = System.nanoTime();
+            // Completed on our own executor, the body is parsed while it's streamed and the IO reactor threads must not be blocked
+            attemptFuture = AsyncHttpEngine.execute(request, asyncRequestExecutor).thenApply(response -> {
+                try {
+                    limits.recordLatency(startNanos);
+                    return handleResponse(url, limits, response, JSON_ENTITY_HANDLER);
+                }
+                catch (final ZendeskException | IOException e) {
+                    throw new CompletionException(e);
+                }
+                finally {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                }
+            });
+            attemptFuture.whenComplete((result, error) -> cancelRequestTimeout(requestTimeout));
+        }
+        else {
+            attemptFuture = new CompletableFuture<>();
+            try {
+                attemptFuture.complete(sendGetRequest(url, task, JSON_ENTITY_HANDLER));
+            }
+            catch (final ZendeskException | RuntimeException e) {
+                attemptFuture.completeExceptionally(e);
+            }
+        }
+
+        attemptFuture.whenComplete((result, error) -> {
+            if (error == null) {
+                future.complete(result);
+            }
+            else {
+                onAttemptFailure(url, task, isPreview, future, attempt, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        });
+    }
+
+    private void onAttemptFailure(final String url, final PluginTask task, final boolean isPreview, final CompletableFuture<JsonNode> future, final int attempt, final Throwable error)
+    {
+        if (!(error instanceof ZendeskException || error instanceof IOException)) {
+            future.completeExceptionally(error instanceof Exception ? toGiveupException((Exception) error) : error);
+            return;
+        }
+        final ZendeskException exception = error instanceof ZendeskException ? (ZendeskException) error : new ZendeskException(-1, error.getMessage(), 0);
+
+        final boolean isRetryable;
+        try {
+            isRetryable = isResponseStatusToRetry(exception.getStatusCode(), exception.getMessage(), exception.getRetryAfter(), isPreview);
+        }
+        catch (final RuntimeException classified) {
+            future.completeExceptionally(classified);
+            return;
+        }
+        if (!isRetryable || attempt > task.getRetryLimit()) {
+            future.completeExceptionally(toGiveupException(exception));
+            return;
+        }
+
+        final long retryWait = Math.min((long) task.getRetryInitialWaitSec() * 1000 << Math.min(attempt - 1, 20), (long) task.getMaxRetryWaitSec() * 1000);
+        // A server error with Retry-After doesn't close the throttle gate, the retry itself waits for it
+        final long delay = Math.max(retryWait, exception.getRetryAfter() * 1000L);
+        logger.warn(String.format("Retrying '%d'/'%d' after '%d' seconds. HTTP status code: '%s'", attempt, task.getRetryLimit(), delay / 1000, exception.getStatusCode()));
+        scheduleAttempt(url, task, isPreview, future, attempt + 1, delay);
+    }
+
+    private RuntimeException toGiveupException(final Exception cause)
+    {
+        if (cause instanceof ZendeskException) {
+            return new ConfigException("Status: '" + ((ZendeskException) cause).getStatusCode() + "', error message: '" + cause.getMessage() + "'", cause);
+        }
+        // e.g. the response doesn't contain the expected records or a streamed record couldn't be handled
+        if (cause instanceof DataException || cause instanceof ConfigException) {
+            return (RuntimeException) cause;
+        }
+        return new ConfigException(cause);
+    }
+
+    public void addStatsToTaskReport(final TaskReport taskReport)
+    {
+        final TaskReport poolReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        poolReport.set("requests", requestCount.get());
+        poolReport.set("peak_leased", peakLeasedConnections.get());
+
+        final PoolingHttpClientConnectionManager manager = connectionManager;
+        if (manager != null) {
+            final PoolStats stats = manager.getTotalStats();
+            poolReport.set("leased", stats.getLeased());
+            poolReport.set("available", stats.getAvailable());
+            poolReport.set("pending", stats.getPending());
+            poolReport.set("max", stats.getMax());
+        }
+        taskReport.setNested("http_connection_pool", poolReport);
+
+        final TaskReport transferReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        transferReport.set("compressed_responses", compressedResponses.get());
+        transferReport.set("received_bytes", receivedBytes.get());
+        transferReport.set("decompressed_bytes", decompressedBytes.get());
+        taskReport.setNested("http_transfer", transferReport);
+
+        final TaskReport rateLimitReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        rateLimitReport.set("slow_downs", rateLimitSlowDowns.get());
+        rateLimitReport.set("wait_millis", rateLimitWaitMillis.get());
+        rateLimitReport.set("too_many_requests", tooManyRequests.get());
+        rateLimitReport.set("pause_millis", pauseMillis.get());
+        taskReport.setNested("rate_limit", rateLimitReport);
+
+        final TaskReport latencyReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        latencyReport.set("p50_millis", latencies.percentile(50));
+        latencyReport.set("p95_millis", latencies.percentile(95));
+        latencyReport.set("p99_millis", latencies.percentile(99));
+        latencyReport.set("request_timeouts", timedOutRequests.get());
+        latencyReport.set("hedges_sent", hedgesSent.get());
+        latencyReport.set("hedges_won", hedgesWon.get());
+        latencyReport.set("hedges_skipped", hedgesSkipped.get());
+        taskReport.setNested("http_latency", latencyReport);
+
+        final TaskReport coalescingReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        coalescingReport.set("coalesced_requests", coalescedRequests.get());
+        coalescingReport.set("cached_responses", cachedResponses.get());
+        taskReport.setNested("http_coalescing", coalescingReport);
+    }
+
     @VisibleForTesting
     protected HttpClient createHttpClient()
     {
-        final RequestConfig config = RequestConfig.custom().setConnectTimeout(CONNECTION_TIME_OUT).setConnectionRequestTimeout(CONNECTION_TIME_OUT).build();
-        return HttpClientBuilder.create().setDefaultRequestConfig(config).build();
+        return getSharedHttpClient();
+    }
+
+    private static synchronized CloseableHttpClient getSharedHttpClient()
+    {
+        if (httpClient == null) {
+            connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+            connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+            // A connection closed by Zendesk while sitting in the pool is detected before it is handed out again
+            connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+            final RequestConfig config = RequestConfig.custom().setConnectTimeout(CONNECTION_TIME_OUT).setConnectionRequestTimeout(CONNECTION_TIME_OUT).build();
+            httpClient = HttpClientBuilder.create()
+                    .setConnectionManager(connectionManager)
+                    // Responses are decompressed by ourselves to measure the transferred bytes
+                    .disableContentCompression()
+                    .setKeepAliveStrategy(buildKeepAliveStrategy())
+                    .evictExpiredConnections()
+                    .evictIdleConnections(IDLE_CONNECTION_TIME_OUT_SEC, TimeUnit.SECONDS)
+                    .setDefaultRequestConfig(config)
+                    .build();
+        }
+        return httpClient;
     }
 
-    private String sendGetRequest(final String url, final PluginTask task)
+    static ConnectionKeepAliveStrategy buildKeepAliveStrategy()
+    {
+        // Honor the server Keep-Alive header, but never keep a connection longer than our own limit
+        return (response, context) -> {
+            final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, KEEP_ALIVE_MILLIS) : KEEP_ALIVE_MILLIS;
+        };
+    }
+
+    private <T> T sendGetRequest(final String url, final PluginTask task, final EntityHandler<T> entityHandler)
         throws ZendeskException
     {
+        HttpResponse response = null;
+        final List<ScheduledFuture<?>> requestTimeouts = new ArrayList<>();
+        InFlightRequests inFlightRequests = null;
         try {
-            final HttpClient client = createHttpClient();
+            final HttpClient client = task.getHttpEngine() == HttpEngine.ASYNC ? null : createHttpClient();
             final HttpRequestBase request = createGetRequest(url, task);
+            sendingRequests.put(Thread.currentThread(), request);
+            // Interrupted before the request could be found by abortRequestOf
+            if (Thread.currentThread().isInterrupted()) {
+                request.abort();
+            }
+            // The non-blocking engine is bounded by max_in_flight_requests whoever waits for the response
+            if (client == null) {
+                final InFlightRequests budget = getInFlightRequests(task);
+                awaitInFlightPlace(budget);
+                inFlightRequests = budget;
+            }
+
+            final RequestLimits limits = new RequestLimits(url, task);
+            limits.await();
+            logRequest(request);
+            requestTimeouts.add(scheduleRequestTimeout(task, request));
+            if (task.getHedgeRequests()) {
+                response = executeHedged(url, task, limits, client, request, requestTimeouts);
+            }
+            else {
+                final long startNanos = System.nanoTime();
+                response = client != null ? client.execute(request) : waitForResponse(AsyncHttpEngine.execute(request, asyncRequestExecutor));
+                limits.recordLatency(startNanos);
+            }
+            return handleResponse(url, limits, response, entityHandler);
+        }
+        catch (final IOException ex) {
+            throw new ZendeskException(-1, ex.getMessage(), 0);
+        }
+        finally {
+            sendingRequests.remove(Thread.currentThread());
+            requestTimeouts.forEach(this::cancelRequestTimeout);
+            // The connection only goes back to the shared pool once its entity is fully consumed
+            if (response != null) {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+            if (inFlightRequests != null) {
+                inFlightRequests.finish();
+            }
+        }
+    }
+
+    /**
+     * Block until the request can start, a place given once the caller stopped waiting is handed back.
+     */
+    private static void awaitInFlightPlace(final InFlightRequests inFlightRequests)
+        throws IOException
+    {
+        final CompletableFuture<Void> place = new CompletableFuture<>();
+        inFlightRequests.start(() -> place.complete(null));
+        try {
+            place.get();
+        }
+        catch (final InterruptedException e) {
+            place.thenRun(inFlightRequests::finish);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an in-flight request to finish");
+        }
+        catch (final ExecutionException e) {
+            // Never completed exceptionally
+            throw new IOException(e.getCause());
+        }
+    }
 
-            if (rateLimiter != null) {
-                rateLimiter.acquire();
+    /**
+     * Send a duplicate request when the response is slower than the observed latency percentile, the first response wins.
+     * Only the response head is raced, the body is read from the winner alone.
+     */
+    private HttpResponse executeHedged(final String url, final PluginTask task, final RequestLimits limits, final HttpClient client, final HttpRequestBase request,
+            final List<ScheduledFuture<?>> requestTimeouts)
+        throws IOException
+    {
+        final long startNanos = System.nanoTime();
+        final CompletableFuture<HttpResponse> primary = send(client, request);
+        final long hedgeDelayMillis = limits.getHedgeDelayMillis(task.getHedgePercentile());
+        if (hedgeDelayMillis < 0) {
+            final HttpResponse response = waitForResponse(primary);
+            limits.recordLatency(startNanos);
+            return response;
+        }
+
+        try {
+            final HttpResponse response = primary.get(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+            limits.recordLatency(startNanos);
+            return response;
+        }
+        catch (final TimeoutException e) {
+            // Too slow, hedge below
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        }
+        catch (final ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+
+        // A hedge is only worth it while the rate limit budget allows it
+        if (limits.tryAcquire() > 0) {
+            hedgesSkipped.incrementAndGet();
+            final HttpResponse response = waitForResponse(primary);
+            limits.recordLatency(startNanos);
+            return response;
+        }
+        hedgesSent.incrementAndGet();
+        logger.info("Hedge request after '{}' ms: {}", hedgeDelayMillis, url);
+        final HttpRequestBase hedgeRequest = createGetRequest(url, task);
+        requestTimeouts.add(scheduleRequestTimeout(task, hedgeRequest));
+        final CompletableFuture<HttpResponse> hedge = send(client, hedgeRequest);
+
+        final CompletableFuture<HttpResponse> winner = new CompletableFuture<>();
+        final AtomicInteger failures = new AtomicInteger();
+        final BiConsumer<HttpResponse, Throwable> race = (response, error) -> {
+            if (error == null) {
+                if (!winner.complete(response)) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                }
+            }
+            else if (failures.incrementAndGet() == 2) {
+                winner.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        };
+        primary.whenComplete(race);
+        hedge.whenComplete(race);
+
+        final HttpResponse response = waitForResponse(winner);
+        limits.recordLatency(startNanos);
+        if (response == hedge.getNow(null)) {
+            hedgesWon.incrementAndGet();
+            request.abort();
+        }
+        else {
+            hedgeRequest.abort();
+        }
+        return response;
+    }
+
+    private CompletableFuture<HttpResponse> send(final HttpClient client, final HttpRequestBase request)
+    {
+        if (client == null) {
+            return AsyncHttpEngine.execute(request, asyncRequestExecutor);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return client.execute(request);
             }
-            logger.info(">>> {}{}", request.getURI().getPath(), request.getURI().getQuery() != null ? "?" + request.getURI().getQuery() : "");
-            final HttpResponse response = client.execute(request);
-            if (rateLimiter == null) {
-                initRateLimiter(response);
+            catch (final IOException e) {
+                throw new CompletionException(e);
             }
+        }, asyncRequestExecutor);
+    }
+
+    /**
+     * Abort the request when it isn't done within request_timeout_sec, including the download of the body.
+     */
+    private ScheduledFuture<?> scheduleRequestTimeout(final PluginTask task, final HttpRequestBase request)
+    {
+        if (task.getRequestTimeoutSec() <= 0) {
+            return null;
+        }
+        return retryScheduler.schedule(() -> {
+            if (!request.isAborted()) {
+                timedOutRequests.incrementAndGet();
+                logger.warn("Abort request exceeding '{}' seconds: {}", task.getRequestTimeoutSec(), request.getURI());
+                request.abort();
+            }
+        }, task.getRequestTimeoutSec(), TimeUnit.SECONDS);
+    }
+
+    private void cancelRequestTimeout(final ScheduledFuture<?> requestTimeout)
+    {
+        if (requestTimeout != null) {
+            requestTimeout.cancel(false);
+        }
+    }
+
+    /**
+     * Abort the request being sent by the thread, if any. A blocking read doesn't stop when its thread is interrupted.
+     */
+    public void abortRequestOf(final Thread thread)
+    {
+        final HttpRequestBase request = sendingRequests.get(thread);
+        if (request != null) {
+            request.abort();
+        }
+    }
+
+    private static HttpResponse waitForResponse(final CompletableFuture<HttpResponse> future)
+        throws IOException
+    {
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * A 429 pauses every request of the account until Retry-After, a server error only delays the failed request.
+     */
+    private static boolean closesThrottleGate(final int statusCode)
+    {
+        return statusCode == ZendeskConstants.HttpStatus.TOO_MANY_REQUEST;
+    }
+
+    private void logRequest(final HttpRequestBase request)
+    {
+        logger.info(">>> {}{}", request.getURI().getPath(), request.getURI().getQuery() != null ? "?" + request.getURI().getQuery() : "");
+    }
+
+    private <T> T handleResponse(final String url, final RequestLimits limits, final HttpResponse response, final EntityHandler<T> entityHandler)
+        throws ZendeskException, IOException
+    {
+        CountingEntity receivedEntity = null;
+        CountingEntity contentEntity = null;
+        try {
+            recordRequest();
+            limits.update(response);
+
+            // e.g. a 204 or 304 has no body at all
+            if (response.getEntity() != null) {
+                receivedEntity = new CountingEntity(response.getEntity());
+                contentEntity = new CountingEntity(decompressEntity(receivedEntity));
+            }
+
             final int statusCode = response.getStatusLine().getStatusCode();
             if (statusCode != HttpStatus.SC_OK) {
+                if (statusCode == ZendeskConstants.HttpStatus.TOO_MANY_REQUEST) {
+                    tooManyRequests.incrementAndGet();
+                }
                 if (statusCode == ZendeskConstants.HttpStatus.TOO_MANY_REQUEST || statusCode == HttpStatus.SC_INTERNAL_SERVER_ERROR || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE) {
                     final Header retryHeader = response.getFirstHeader("Retry-After");
                     if (retryHeader != null) {
-                        throw new ZendeskException(statusCode, EntityUtils.toString(response.getEntity()), Integer.parseInt(retryHeader.getValue()));
+                        final int retryAfter = Integer.parseInt(retryHeader.getValue());
+                        if (closesThrottleGate(statusCode)) {
+                            limits.closeGate(retryAfter);
+                        }
+                        throw new ZendeskException(statusCode, readMessage(contentEntity), retryAfter);
                     }
                 }
-                throw new ZendeskException(statusCode, EntityUtils.toString(response.getEntity()), 0);
+                throw new ZendeskException(statusCode, readMessage(contentEntity), 0);
+            }
+            if (contentEntity == null) {
+                throw new ZendeskException(statusCode, "Missing response body", 0);
             }
-            return EntityUtils.toString(response.getEntity());
+            return entityHandler.handle(contentEntity);
         }
-        catch (final IOException ex) {
-            throw new ZendeskException(-1, ex.getMessage(), 0);
+        finally {
+            if (receivedEntity != null) {
+                recordTransfer(url, receivedEntity, contentEntity);
+            }
+        }
+    }
+
+    private static String readMessage(final HttpEntity entity)
+        throws IOException
+    {
+        return entity != null ? EntityUtils.toString(entity) : "";
+    }
+
+    private HttpEntity decompressEntity(final HttpEntity entity)
+    {
+        final Header contentEncoding = entity.getContentEncoding();
+        if (contentEncoding != null) {
+            for (final HeaderElement element : contentEncoding.getElements()) {
+                final String codec = element.getName().toLowerCase();
+                if (codec.equals("gzip") || codec.equals("x-gzip")) {
+                    return new GzipDecompressingEntity(entity);
+                }
+                if (codec.equals("deflate")) {
+                    return new DeflateDecompressingEntity(entity);
+                }
+            }
+        }
+        return entity;
+    }
+
+    private void recordTransfer(final String url, final CountingEntity receivedEntity, final CountingEntity contentEntity)
+    {
+        final long received = receivedEntity.getByteCount();
+        final long decompressed = contentEntity.getByteCount();
+        receivedBytes.addAndGet(received);
+        decompressedBytes.addAndGet(decompressed);
+        if (receivedEntity.getContentEncoding() != null) {
+            compressedResponses.incrementAndGet();
+        }
+        logger.debug("<<< {} received '{}' bytes, decompressed to '{}' bytes", url, received, decompressed);
+    }
+
+    private void recordRequest()
+    {
+        requestCount.incrementAndGet();
+        final PoolingHttpClientConnectionManager manager = connectionManager;
+        if (manager != null) {
+            peakLeasedConnections.accumulateAndGet(manager.getTotalStats().getLeased(), Math::max);
         }
     }
 
@@ -229,6 +873,12 @@ public class ZendeskRestClient
         final HttpGet request = new HttpGet(url);
         final ImmutableMap<String, String> headers = buildAuthHeader(task);
         headers.forEach(request::setHeader);
+        // The socket timeout bounds the wait for the first byte of the response and every read after it
+        request.setConfig(RequestConfig.custom()
+                .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(task.getConnectTimeoutSec()))
+                .setConnectionRequestTimeout(CONNECTION_TIME_OUT)
+                .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(task.getReadTimeoutSec()))
+                .build());
         return request;
     }
 
@@ -260,26 +910,100 @@ public class ZendeskRestClient
         task.getAppMarketPlaceOrgId().ifPresent(s -> builder.put(ZendeskConstants.Header.ZENDESK_MARKETPLACE_ORGANIZATION_ID, s));
 
         builder.put(CONTENT_TYPE, ZendeskConstants.Header.APPLICATION_JSON);
+        builder.put(ACCEPT_ENCODING, ZendeskConstants.Header.GZIP_DEFLATE);
     }
 
-    private synchronized void initRateLimiter(final HttpResponse response)
+    @VisibleForTesting
+    static InFlightRequests getInFlightRequests(final PluginTask task)
     {
-        if (response.containsHeader("x-rate-limit")) {
-            double permits = 0.0;
-            final String rateLimit = response.getFirstHeader("x-rate-limit").getValue();
-            try {
-                permits = Double.parseDouble(rateLimit);
+        return inFlightRequests.computeIfAbsent(AccountRateLimits.buildKey(task) + " " + task.getMaxInFlightRequests(),
+                key -> new InFlightRequests(task.getMaxInFlightRequests()));
+    }
+
+    /**
+     * Rate limits applying to one request.
+     */
+    private final class RequestLimits
+    {
+        private final AccountRateLimits rateLimits;
+        private final EndpointType endpointType;
+        private final List<EndpointType> limitedBy;
+
+        RequestLimits(final String url, final PluginTask task)
+        {
+            rateLimits = AccountRateLimits.of(task);
+            endpointType = EndpointType.of(url);
+            limitedBy = endpointType.isCountedInGeneric() ? Arrays.asList(endpointType, EndpointType.GENERIC) : Collections.singletonList(endpointType);
+        }
+
+        void await()
+        {
+            for (final EndpointType type : limitedBy) {
+                pauseMillis.addAndGet(rateLimits.getThrottleGate(type).await());
             }
-            catch (final NumberFormatException e) {
-                throw new DataException("Error when parse x-rate-limit: '" + response.getFirstHeader("x-rate-limit").getValue() + "'");
+            // Endpoint specific limits come first, the account wide permit is taken right before sending
+            for (final EndpointType type : limitedBy) {
+                rateLimitWaitMillis.addAndGet((long) (rateLimits.getRateLimiter(type).acquire() * 1000));
             }
+        }
 
-            if (permits > 0) {
-                permits = permits / 60;
-                logger.info("Permits per second " + permits);
+        /**
+         * @return 0 if the request can be sent now, otherwise the milliseconds to wait before trying again
+         */
+        long tryAcquire()
+        {
+            for (final EndpointType type : limitedBy) {
+                final long closedMillis = rateLimits.getThrottleGate(type).getClosedMillis();
+                if (closedMillis > 0) {
+                    pauseMillis.addAndGet(closedMillis);
+                    return closedMillis;
+                }
+            }
+            final long waitMillis = rateLimits.tryAcquire(limitedBy);
+            rateLimitWaitMillis.addAndGet(waitMillis);
+            return waitMillis;
+        }
 
-                rateLimiter = RateLimiter.create(permits);
+        void update(final HttpResponse response)
+        {
+            for (final EndpointType type : limitedBy) {
+                if (rateLimits.getRateLimiter(type).update(response)) {
+                    rateLimitSlowDowns.incrementAndGet();
+                }
+            }
+        }
+
+        void recordLatency(final long startNanos)
+        {
+            final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            rateLimits.getLatencyTracker(endpointType).record(latencyMillis);
+            latencies.record(latencyMillis);
+        }
+
+        /**
+         * @return the delay before hedging, -1 until enough latencies are observed
+         */
+        long getHedgeDelayMillis(final int percentile)
+        {
+            final LatencyTracker tracker = rateLimits.getLatencyTracker(endpointType);
+            if (tracker.size() < MIN_LATENCY_SAMPLES_TO_HEDGE) {
+                return -1;
             }
+            return Math.max(MIN_HEDGE_DELAY_MILLIS, tracker.percentile(percentile));
         }
+
+        void closeGate(final int retryAfter)
+        {
+            if (rateLimits.getThrottleGate(endpointType).closeFor(TimeUnit.SECONDS.toMillis(retryAfter))) {
+                logger.warn("Pause all '{}' requests for '{}' seconds", endpointType, retryAfter);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface EntityHandler<T>
+    {
+        T handle(HttpEntity entity)
+            throws IOException;
     }
 }
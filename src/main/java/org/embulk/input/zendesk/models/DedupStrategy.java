@@ -0,0 +1,34 @@
+package org.embulk.input.zendesk.models;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.embulk.config.ConfigException;
+
+import java.util.Arrays;
+
+public enum DedupStrategy
+{
+    /** Remember the id of every record imported by the task */
+    ALL,
+    /** Only remember the ids of the records at the end of a page, the ones the next page can return again */
+    BOUNDARY,
+    /** Import the version of each record with the greatest update time, once every page is read */
+    LATEST;
+
+    @JsonCreator
+    public static DedupStrategy fromString(final String value)
+    {
+        try {
+            return DedupStrategy.valueOf(value.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new ConfigException("Unsupported dedup_strategy '" + value + "', supported values: '"
+                    + Arrays.toString(DedupStrategy.values()) + "'");
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name().trim().toLowerCase();
+    }
+}
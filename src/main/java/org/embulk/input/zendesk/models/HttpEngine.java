@@ -0,0 +1,32 @@
+package org.embulk.input.zendesk.models;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.embulk.config.ConfigException;
+
+import java.util.Arrays;
+
+public enum HttpEngine
+{
+    /** Blocking client, a thread waits for each request */
+    SYNC,
+    /** Non-blocking client, a few IO threads serve every in-flight request */
+    ASYNC;
+
+    @JsonCreator
+    public static HttpEngine fromString(final String value)
+    {
+        try {
+            return HttpEngine.valueOf(value.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new ConfigException("Unsupported http_engine '" + value + "', supported values: '"
+                    + Arrays.toString(HttpEngine.values()) + "'");
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name().trim().toLowerCase();
+    }
+}
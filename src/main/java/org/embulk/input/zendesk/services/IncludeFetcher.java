@@ -0,0 +1,247 @@
+package org.embulk.input.zendesk.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hashing;
+import org.apache.http.HttpStatus;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.embulk.input.zendesk.RecordImporter;
+import org.embulk.input.zendesk.ZendeskInputPlugin;
+import org.embulk.input.zendesk.clients.AccountRateLimits;
+import org.embulk.input.zendesk.clients.ZendeskRestClient;
+import org.embulk.input.zendesk.models.ZendeskException;
+import org.embulk.input.zendesk.utils.IncludeCache;
+import org.embulk.input.zendesk.utils.ZendeskConstants;
+import org.embulk.input.zendesk.utils.ZendeskUtils;
+import org.embulk.spi.DataException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER_FACTORY;
+
+/**
+ * Fetch the includes of a record, all of them at once, each one with every page of it.
+ * The requests of every record share the max_in_flight_requests budget of the rest client.
+ */
+class IncludeFetcher implements AutoCloseable
+{
+    private final ZendeskInputPlugin.PluginTask task;
+    private final IncludePlanner includePlanner;
+    private final Supplier<ZendeskRestClient> zendeskRestClient;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong prunedRequests = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final IncludeCache includeCache;
+    private final String cacheKeyPrefix;
+
+    /**
+     * @param includePlanner only its per-record includes are fetched, the sideloaded ones are already set on the record
+     */
+    IncludeFetcher(final ZendeskInputPlugin.PluginTask task, final IncludePlanner includePlanner, final Supplier<ZendeskRestClient> zendeskRestClient)
+    {
+        this.task = task;
+        this.includePlanner = includePlanner;
+        this.zendeskRestClient = zendeskRestClient;
+        this.includeCache = task.getIncludeCacheDir().isPresent() && hasIncludes()
+                ? IncludeCache.open(task.getIncludeCacheDir().get(), task.getIncludeCacheMaxMb() * 1024L * 1024L)
+                : null;
+        // Accounts may share a cache directory, and the same record id in another account is another record
+        this.cacheKeyPrefix = Hashing.sha256().hashString(AccountRateLimits.buildKey(task), StandardCharsets.UTF_8).toString() + "/";
+    }
+
+    boolean hasIncludes()
+    {
+        return !includePlanner.getPerRecordIncludes().isEmpty();
+    }
+
+    void addStatsToTaskReport(final TaskReport taskReport)
+    {
+        final TaskReport includeReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        includeReport.set("requests", requests.get());
+        includeReport.set("pruned_requests", prunedRequests.get());
+        includeReport.set("cache_hits", cacheHits.get());
+        taskReport.setNested("includes", includeReport);
+    }
+
+    /**
+     * Fetch the includes then add the record to the importer, on the calling thread.
+     */
+    void fetchAndAddToImporter(final JsonNode jsonNode, final RecordImporter recordImporter)
+    {
+        if (hasIncludes()) {
+            try {
+                fetchAsync(jsonNode).join();
+            }
+            catch (final CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new DataException(e.getCause());
+            }
+        }
+        recordImporter.addRecord(jsonNode);
+    }
+
+    /**
+     * @return the record, completed once every include is set
+     */
+    CompletableFuture<JsonNode> fetchAsync(final JsonNode jsonNode)
+    {
+        final List<CompletableFuture<Void>> includeFutures = new ArrayList<>();
+        for (final String include : includePlanner.getPerRecordIncludes()) {
+            final String relatedObjectName = include.trim();
+            if (includePlanner.isPrunable(include, jsonNode)) {
+                prunedRequests.incrementAndGet();
+                continue;
+            }
+
+            // The includes of a record can only change along with its updated_at
+            final String updatedAt = includeCache != null && jsonNode.hasNonNull(ZendeskConstants.Field.UPDATED_AT)
+                    ? jsonNode.get(ZendeskConstants.Field.UPDATED_AT).asText()
+                    : null;
+            final String cacheKey = cacheKeyPrefix + task.getTarget().toString() + "/" + jsonNode.get(ZendeskConstants.Field.ID).asText() + "/" + relatedObjectName;
+            if (updatedAt != null) {
+                final JsonNode cached = includeCache.get(cacheKey, updatedAt);
+                if (cached != null) {
+                    cacheHits.incrementAndGet();
+                    synchronized (jsonNode) {
+                        ((ObjectNode) jsonNode).set(include, cached);
+                    }
+                    continue;
+                }
+            }
+            requests.incrementAndGet();
+
+            final String path = ZendeskConstants.Url.API
+                    + "/" + task.getTarget().toString()
+                    + "/" + jsonNode.get(ZendeskConstants.Field.ID).asText()
+                    + "/" + relatedObjectName + ".json";
+            includeFutures.add(fetchPagesAsync(path, relatedObjectName).<Void>handle((pages, error) -> {
+                if (error != null) {
+                    final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    // Sometimes we get 404 when having invalid endpoint, so ignore when we get 404 InvalidEndpoint
+                    if (!(cause instanceof ConfigException && cause.getCause() instanceof ZendeskException && ((ZendeskException) cause.getCause()).getStatusCode() == HttpStatus.SC_NOT_FOUND)) {
+                        throw new CompletionException(cause);
+                    }
+                }
+                else if (pages != null) {
+                    if (updatedAt != null) {
+                        includeCache.put(cacheKey, updatedAt, pages);
+                    }
+                    // Includes of a record complete on different threads
+                    synchronized (jsonNode) {
+                        ((ObjectNode) jsonNode).set(include, pages);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        return CompletableFuture.allOf(includeFutures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> jsonNode);
+    }
+
+    @Override
+    public void close()
+    {
+        if (includeCache != null) {
+            includeCache.close();
+        }
+    }
+
+    /**
+     * Fetch every page of the sub resource, up to include_max_pages.
+     * Once the first page gives the count, the other pages are requested at once by number, otherwise the next links are followed.
+     * They are requested from the thread completing the previous page, which doGetAsync never blocks: past max_in_flight_requests they are queued.
+     *
+     * @return the elements of every page in a single array, null when the response has none
+     */
+    private CompletableFuture<JsonNode> fetchPagesAsync(final String path, final String relatedObjectName)
+    {
+        final String firstPageUrl = ZendeskUtils.getURIBuilder(task.getLoginUrl()).setPath(path).toString();
+        return zendeskRestClient.get().doGetAsync(firstPageUrl, task, false).thenCompose(firstPage -> {
+            final JsonNode firstElements = firstPage.get(relatedObjectName);
+            if (firstElements == null || !firstElements.isArray()) {
+                return CompletableFuture.completedFuture(firstElements);
+            }
+
+            final List<JsonNode> pages = new ArrayList<>();
+            pages.add(firstPage);
+            if (getNextPageUrl(firstPage) == null || task.getIncludeMaxPages() == 1) {
+                return CompletableFuture.completedFuture(mergePages(pages, relatedObjectName));
+            }
+
+            if (firstPage.hasNonNull(ZendeskConstants.Field.COUNT) && firstPage.hasNonNull(ZendeskConstants.Field.NEXT_PAGE) && firstElements.size() > 0) {
+                final long count = firstPage.get(ZendeskConstants.Field.COUNT).asLong();
+                final long numberOfPages = Math.min((count + firstElements.size() - 1) / firstElements.size(), task.getIncludeMaxPages());
+                final List<CompletableFuture<JsonNode>> pageFutures = new ArrayList<>();
+                for (int page = 2; page <= numberOfPages; page++) {
+                    requests.incrementAndGet();
+                    final String pageUrl = ZendeskUtils.getURIBuilder(task.getLoginUrl()).setPath(path)
+                            .setParameter(ZendeskConstants.Field.PAGE, String.valueOf(page)).toString();
+                    pageFutures.add(zendeskRestClient.get().doGetAsync(pageUrl, task, false));
+                }
+                return CompletableFuture.allOf(pageFutures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                    pageFutures.forEach(pageFuture -> pages.add(pageFuture.join()));
+                    return mergePages(pages, relatedObjectName);
+                });
+            }
+            return followNextPages(pages, relatedObjectName);
+        });
+    }
+
+    private CompletableFuture<JsonNode> followNextPages(final List<JsonNode> pages, final String relatedObjectName)
+    {
+        final String nextPageUrl = getNextPageUrl(pages.get(pages.size() - 1));
+        if (nextPageUrl == null || pages.size() >= task.getIncludeMaxPages()) {
+            return CompletableFuture.completedFuture(mergePages(pages, relatedObjectName));
+        }
+        requests.incrementAndGet();
+        return zendeskRestClient.get().doGetAsync(nextPageUrl, task, false).thenCompose(page -> {
+            pages.add(page);
+            return followNextPages(pages, relatedObjectName);
+        });
+    }
+
+    /**
+     * @return next_page of offset pagination or links.next of cursor pagination, null on the last page
+     */
+    private static String getNextPageUrl(final JsonNode page)
+    {
+        if (page.hasNonNull(ZendeskConstants.Field.NEXT_PAGE)) {
+            return page.get(ZendeskConstants.Field.NEXT_PAGE).asText();
+        }
+        final JsonNode meta = page.get(ZendeskConstants.Field.META);
+        final JsonNode links = page.get(ZendeskConstants.Field.LINKS);
+        if (meta != null && meta.path(ZendeskConstants.Field.HAS_MORE).asBoolean() && links != null && links.hasNonNull(ZendeskConstants.Field.NEXT)) {
+            return links.get(ZendeskConstants.Field.NEXT).asText();
+        }
+        return null;
+    }
+
+    /**
+     * Elements are appended as is, in page order, without copying them: the pages belong to this record alone.
+     */
+    private static JsonNode mergePages(final List<JsonNode> pages, final String relatedObjectName)
+    {
+        if (pages.size() == 1) {
+            return pages.get(0).get(relatedObjectName);
+        }
+        final ArrayNode elements = JsonNodeFactory.instance.arrayNode();
+        for (final JsonNode page : pages) {
+            final JsonNode pageElements = page.get(relatedObjectName);
+            if (pageElements != null && pageElements.isArray()) {
+                elements.addAll((ArrayNode) pageElements);
+            }
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,170 @@
+package org.embulk.input.zendesk.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.input.zendesk.ZendeskInputPlugin;
+import org.embulk.input.zendesk.models.Target;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Split the includes between the ones sideloaded on the page request and the ones fetched per record,
+ * and skip the per-record requests the record tells us return nothing.
+ *
+ * https://developer.zendesk.com/api-reference/ticketing/ticket-management/incremental_exports/#sideloading
+ */
+class IncludePlanner
+{
+    private static final String COMMENTS = "comments";
+    private static final String COMMENT_COUNT = "comment_count";
+
+    private static final Map<String, Sideload> TICKET_SIDELOADS = new HashMap<>();
+
+    static {
+        TICKET_SIDELOADS.put("users", new Sideload("id",
+                Arrays.asList("requester_id", "submitter_id", "assignee_id", "collaborator_ids", "follower_ids", "email_cc_ids")));
+        TICKET_SIDELOADS.put("groups", new Sideload("id", Collections.singletonList("group_id")));
+        TICKET_SIDELOADS.put("organizations", new Sideload("id", Collections.singletonList("organization_id")));
+        TICKET_SIDELOADS.put("metric_sets", new Sideload("ticket_id", Collections.singletonList("id")));
+        // Set by the API on each ticket, nothing to join
+        TICKET_SIDELOADS.put(COMMENT_COUNT, null);
+    }
+
+    private final List<String> sideloads = new ArrayList<>();
+    private final List<String> perRecordIncludes = new ArrayList<>();
+    private final List<String> pageIncludes = new ArrayList<>();
+    private final boolean isPruneEnabled;
+
+    /**
+     * @param isPageRequestSideloadable whether the page request of the target accepts sideloads
+     */
+    IncludePlanner(final ZendeskInputPlugin.PluginTask task, final boolean isPageRequestSideloadable)
+    {
+        final boolean isSideloadEnabled = task.getSideloadIncludes() && isPageRequestSideloadable && task.getTarget() == Target.TICKETS;
+        for (final String include : task.getIncludes()) {
+            if (isSideloadEnabled && TICKET_SIDELOADS.containsKey(include.trim())) {
+                sideloads.add(include.trim());
+            }
+            else {
+                perRecordIncludes.add(include);
+            }
+        }
+
+        isPruneEnabled = task.getPruneIncludes() && task.getTarget() == Target.TICKETS;
+        pageIncludes.addAll(sideloads);
+        // The count of comments is cheap to sideload and tells which tickets have none
+        if (isPruneEnabled && isPageRequestSideloadable && perRecordIncludes.stream().anyMatch(include -> include.trim().equals(COMMENTS))
+                && !pageIncludes.contains(COMMENT_COUNT)) {
+            pageIncludes.add(COMMENT_COUNT);
+        }
+    }
+
+    /**
+     * @return true when the page has sideloaded objects to join onto its records
+     */
+    boolean hasSideloads()
+    {
+        return sideloads.stream().anyMatch(sideload -> TICKET_SIDELOADS.get(sideload) != null);
+    }
+
+    /**
+     * @return value of the include parameter of the page request, empty when nothing is sideloaded
+     */
+    String getPageIncludeParameter()
+    {
+        return String.join(",", pageIncludes);
+    }
+
+    List<String> getPerRecordIncludes()
+    {
+        return perRecordIncludes;
+    }
+
+    /**
+     * @return true when the per-record request of the include can't return anything for the record
+     */
+    boolean isPrunable(final String include, final JsonNode record)
+    {
+        if (!isPruneEnabled) {
+            return false;
+        }
+        // Sub resources of a deleted ticket are not found
+        if (record.hasNonNull("status") && record.get("status").asText().equals("deleted")) {
+            return true;
+        }
+        return include.trim().equals(COMMENTS) && record.hasNonNull(COMMENT_COUNT) && record.get(COMMENT_COUNT).asLong() == 0;
+    }
+
+    /**
+     * Set the sideloaded objects of the page on the records referencing them.
+     */
+    void joinSideloads(final List<JsonNode> records, final JsonNode pageFields)
+    {
+        for (final String include : sideloads) {
+            final Sideload sideload = TICKET_SIDELOADS.get(include);
+            if (sideload == null) {
+                continue;
+            }
+
+            final Map<String, List<JsonNode>> objectsByKey = new HashMap<>();
+            if (pageFields.has(include) && pageFields.get(include).isArray()) {
+                for (final JsonNode object : pageFields.get(include)) {
+                    if (object.hasNonNull(sideload.objectKey)) {
+                        objectsByKey.computeIfAbsent(object.get(sideload.objectKey).asText(), key -> new ArrayList<>()).add(object);
+                    }
+                }
+            }
+
+            for (final JsonNode record : records) {
+                final ArrayNode joined = JsonNodeFactory.instance.arrayNode();
+                for (final String key : sideload.getReferencedKeys(record)) {
+                    joined.addAll(objectsByKey.getOrDefault(key, Collections.emptyList()));
+                }
+                ((ObjectNode) record).set(include, joined);
+            }
+        }
+    }
+
+    private static class Sideload
+    {
+        private final String objectKey;
+        private final List<String> recordFields;
+
+        /**
+         * @param objectKey field of the sideloaded object matched against the record
+         * @param recordFields fields of the record referencing the objects, either a value or an array of values
+         */
+        Sideload(final String objectKey, final List<String> recordFields)
+        {
+            this.objectKey = objectKey;
+            this.recordFields = recordFields;
+        }
+
+        Set<String> getReferencedKeys(final JsonNode record)
+        {
+            final Set<String> keys = new LinkedHashSet<>();
+            for (final String field : recordFields) {
+                final JsonNode value = record.get(field);
+                if (value == null || value.isNull()) {
+                    continue;
+                }
+                if (value.isArray()) {
+                    value.forEach(element -> keys.add(element.asText()));
+                }
+                else {
+                    keys.add(value.asText());
+                }
+            }
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.embulk.input.zendesk.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.embulk.input.zendesk.RecordImporter;
+import org.embulk.input.zendesk.utils.MemoryBudget;
+import org.embulk.spi.DataException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records whose includes are fetched asynchronously, each one is added to the importer when complete.
+ *
+ * The records of a page take their bytes from a reservation made before the page is requested, so that they reach
+ * the include fetch while the page is still downloading: the page loop waits for the memory budget between pages only.
+ */
+class PendingRecords
+{
+    // Not a Phaser, whose parties are limited to 65535 while a page loop can get further ahead of the includes
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final MemoryBudget memoryBudget;
+    // Only used by the page loop
+    private boolean isPageReserved;
+    private long largestPageBytes;
+    private long pageReservedBytes;
+    private long pageTakenBytes;
+
+    PendingRecords(final MemoryBudget memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+    }
+
+    MemoryBudget getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Wait for the budget of a page as large as the largest one so far, before requesting it.
+     */
+    void reservePage()
+    {
+        memoryBudget.acquire(largestPageBytes);
+        isPageReserved = true;
+        pageReservedBytes = largestPageBytes;
+        pageTakenBytes = 0;
+    }
+
+    /**
+     * Take the bytes of a record of the page from its reservation, without waiting past it either.
+     * Outside of a page, wait for the bytes in the memory budget.
+     */
+    void take(final long recordBytes)
+    {
+        if (!isPageReserved) {
+            memoryBudget.acquire(recordBytes);
+            return;
+        }
+        final long excessBytes = Math.min(recordBytes, pageTakenBytes + recordBytes - pageReservedBytes);
+        if (excessBytes > 0) {
+            memoryBudget.forceAcquire(excessBytes);
+        }
+        pageTakenBytes += recordBytes;
+    }
+
+    /**
+     * Give back what the records of the page didn't take, once it's read.
+     */
+    void releasePage()
+    {
+        if (pageTakenBytes < pageReservedBytes) {
+            memoryBudget.release(pageReservedBytes - pageTakenBytes);
+        }
+        largestPageBytes = Math.max(largestPageBytes, pageTakenBytes);
+        isPageReserved = false;
+        pageReservedBytes = 0;
+        pageTakenBytes = 0;
+    }
+
+    /**
+     * @param recordBytes taken from the memory budget by the caller, released once the record is imported
+     */
+    void add(final CompletableFuture<JsonNode> record, final RecordImporter recordImporter, final long recordBytes)
+    {
+        pending.incrementAndGet();
+        record.whenComplete((jsonNode, error) -> {
+            try {
+                if (error != null) {
+                    failure.compareAndSet(null, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                }
+                else if (failure.get() == null) {
+                    recordImporter.addRecord(jsonNode);
+                }
+            }
+            finally {
+                memoryBudget.release(recordBytes);
+                if (pending.decrementAndGet() == 0) {
+                    lock.lock();
+                    try {
+                        drained.signalAll();
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        });
+    }
+
+    int getPendingCount()
+    {
+        return pending.get();
+    }
+
+    void await()
+    {
+        lock.lock();
+        try {
+            while (pending.get() > 0) {
+                drained.awaitUninterruptibly();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void awaitAll()
+    {
+        await();
+        final Throwable error = failure.get();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error != null) {
+            throw new DataException(error);
+        }
+    }
+}
@@ -98,6 +98,7 @@ public class ZendeskChatService implements ZendeskService
         storeStartTimeForConfigDiff(taskReport,
             startTime.equals("0") ? 0 : ZendeskDateUtils.isoToEpochSecond(startTime),
             ZendeskDateUtils.isoToEpochSecond(endTime));
+        getZendeskRestClient().addStatsToTaskReport(taskReport);
         return taskReport;
     }
 
@@ -1,16 +1,14 @@
 package org.embulk.input.zendesk.services;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.annotations.VisibleForTesting;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.utils.URIBuilder;
 import org.embulk.config.ConfigException;
 import org.embulk.config.TaskReport;
 import org.embulk.input.zendesk.RecordImporter;
 import org.embulk.input.zendesk.ZendeskInputPlugin;
 import org.embulk.input.zendesk.clients.ZendeskRestClient;
-import org.embulk.input.zendesk.models.ZendeskException;
+import org.embulk.input.zendesk.stream.PagePrefetcher;
+import org.embulk.input.zendesk.utils.MemoryBudget;
 import org.embulk.input.zendesk.utils.ZendeskConstants;
 import org.embulk.input.zendesk.utils.ZendeskDateUtils;
 import org.embulk.input.zendesk.utils.ZendeskUtils;
@@ -20,7 +18,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URISyntaxException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER_FACTORY;
 
@@ -33,6 +35,10 @@ public class ZendeskCursorBasedService
 
     private ZendeskRestClient zendeskRestClient;
 
+    private IncludeFetcher includeFetcher;
+
+    private IncludePlanner includePlanner;
+
     public ZendeskCursorBasedService(final ZendeskInputPlugin.PluginTask task)
     {
         this.task = task;
@@ -48,8 +54,20 @@ public class ZendeskCursorBasedService
     public TaskReport addRecordToImporter(int taskIndex, RecordImporter recordImporter)
     {
         TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
-        importData(task, recordImporter, taskReport);
+        try {
+            importData(task, taskIndex, recordImporter, taskReport);
 
+            getZendeskRestClient().addStatsToTaskReport(taskReport);
+            if (!task.getIncludes().isEmpty()) {
+                getIncludeFetcher().addStatsToTaskReport(taskReport);
+            }
+        }
+        finally {
+            if (includeFetcher != null) {
+                includeFetcher.close();
+                includeFetcher = null;
+            }
+        }
         return taskReport;
     }
 
@@ -75,7 +93,7 @@ public class ZendeskCursorBasedService
         return zendeskRestClient;
     }
 
-    private void importData(final ZendeskInputPlugin.PluginTask task, final RecordImporter recordImporter, final TaskReport taskReport)
+    private void importData(final ZendeskInputPlugin.PluginTask task, final int taskIndex, final RecordImporter recordImporter, final TaskReport taskReport)
     {
         long initStartTime = 0;
 
@@ -83,29 +101,65 @@ public class ZendeskCursorBasedService
             initStartTime = ZendeskDateUtils.getStartTime(task.getStartTime().get());
         }
 
-        long nextStartTime = initStartTime;
+        final long[] shardWindow = ZendeskNormalServices.getShardWindow(task, initStartTime, taskIndex);
+        final long windowStartTime = shardWindow != null ? shardWindow[0] : initStartTime;
+
+        long nextStartTime = windowStartTime;
         long totalRecords = 0;
+        PagePrefetcher prefetcher = null;
+        final PendingRecords pendingRecords = new PendingRecords(new MemoryBudget(task.getMaxPendingRecordsMb() * 1024L * 1024L));
         try {
-            String path = buildPath(initStartTime);
+            String path = buildPath(windowStartTime);
+            // Preview stops after the first page, nothing to prefetch
+            if (task.getPrefetchDepth() > 0 && !Exec.isPreview()) {
+                prefetcher = createPrefetcher(path, shardWindow);
+            }
 
             while (true) {
-                final JsonNode result = fetchResultFromPath(path);
-
-                final Iterator<JsonNode> iterator = ZendeskUtils.getListRecords(result, task.getTarget().getJsonName());
-
-                int numberOfRecords = 0;
+                final AtomicInteger numberOfRecords = new AtomicInteger();
+                final AtomicReference<JsonNode> lastRecord = new AtomicReference<>();
+                final AtomicReference<JsonNode> lastPageRecord = new AtomicReference<>();
+                final Consumer<JsonNode> recordConsumer = recordJsonNode -> {
+                    lastPageRecord.set(recordJsonNode);
+                    if (shardWindow != null) {
+                        // A record belongs to the shard whose window contains the time records are sorted by,
+                        // its updated_at may be earlier and out of order
+                        final long paginationTime = getPaginationTime(recordJsonNode);
+                        if (paginationTime < shardWindow[0] || paginationTime > shardWindow[1]) {
+                            return;
+                        }
+                    }
+                    importRecord(recordJsonNode, pendingRecords, recordImporter);
+                    numberOfRecords.incrementAndGet();
+                    lastRecord.set(recordJsonNode);
+                };
 
-                while (iterator.hasNext()) {
-                    final JsonNode recordJsonNode = iterator.next();
-                    fetchSubResourceAndAddToImporter(recordJsonNode, task, recordImporter);
-                    numberOfRecords++;
-                    // Store nextStartTime of last item
-                    if (!iterator.hasNext() && task.getIncremental()) {
-                        nextStartTime = ZendeskDateUtils.isoToEpochSecond(recordJsonNode.get(ZendeskConstants.Field.UPDATED_AT).asText());
+                final JsonNode result;
+                // Records are imported while the page downloads, waiting for the memory budget happens between pages
+                pendingRecords.reservePage();
+                try {
+                    if (prefetcher != null) {
+                        final PagePrefetcher.Page page = prefetcher.next();
+                        if (page == null) {
+                            throw new DataException("Missing cursor page '" + path + "'");
+                        }
+                        page.getRecords().forEach(recordConsumer);
+                        result = page.getFields();
                     }
+                    else {
+                        result = getPage(path, Exec.isPreview(), recordConsumer);
+                    }
+                }
+                finally {
+                    pendingRecords.releasePage();
+                }
+
+                // Store nextStartTime of last item
+                if (lastRecord.get() != null && task.getIncremental()) {
+                    nextStartTime = getRecordTime(lastRecord.get());
                 }
 
-                totalRecords = totalRecords + numberOfRecords;
+                totalRecords = totalRecords + numberOfRecords.get();
                 if (result.has(ZendeskConstants.Field.END_OF_STREAM)) {
                     if (result.get(ZendeskConstants.Field.END_OF_STREAM).asBoolean()) {
                         break;
@@ -114,57 +168,132 @@ public class ZendeskCursorBasedService
                 else {
                     throw new DataException("Missing end of stream, please double-check the endpoint");
                 }
-                if (Exec.isPreview()) {
+                if (Exec.isPreview() || isPastWindow(lastPageRecord.get(), shardWindow)) {
                     break;
                 }
 
                 path = result.get(ZendeskConstants.Field.AFTER_URL).asText();
             }
 
+            pendingRecords.awaitAll();
             logger.info("import records total " + totalRecords);
 
             if (!Exec.isPreview() && task.getIncremental()) {
-                storeStartTimeForConfigDiff(taskReport, nextStartTime);
+                // A shard imports its whole window, the next run starts after it. The last one ends where the export does
+                storeStartTimeForConfigDiff(taskReport, shardWindow != null && !ZendeskNormalServices.isOpenWindow(shardWindow) ? shardWindow[1] + 1 : nextStartTime);
             }
         }
         catch (Exception e) {
             throw new DataException(e);
         }
+        finally {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+            // Don't let records still being fetched reach the importer once we leave
+            pendingRecords.await();
+        }
+    }
+
+    private PagePrefetcher createPrefetcher(final String firstPath, final long[] shardWindow)
+    {
+        return new PagePrefetcher(firstPath, task.getPrefetchDepth(),
+                url -> {
+                    final List<JsonNode> records = new ArrayList<>();
+                    final JsonNode fields = getPage(url, false, records::add);
+                    return new PagePrefetcher.Page(records, fields);
+                },
+                page -> {
+                    // A missing end_of_stream is reported by the consumer loop once it reaches the page
+                    if (!page.getFields().has(ZendeskConstants.Field.END_OF_STREAM) || page.getFields().get(ZendeskConstants.Field.END_OF_STREAM).asBoolean()) {
+                        return null;
+                    }
+                    final List<JsonNode> records = page.getRecords();
+                    if (!records.isEmpty() && isPastWindow(records.get(records.size() - 1), shardWindow)) {
+                        return null;
+                    }
+                    return page.getFields().get(ZendeskConstants.Field.AFTER_URL).asText();
+                },
+                getZendeskRestClient()::abortRequestOf);
+    }
+
+    /**
+     * Stream the records of the page to the consumer, or hand them once the page is read when the sideloads have to be joined.
+     */
+    private JsonNode getPage(final String url, final boolean isPreview, final Consumer<JsonNode> recordConsumer)
+    {
+        if (!getIncludePlanner().hasSideloads()) {
+            return getZendeskRestClient().doGetRecords(url, task, isPreview, task.getTarget().getJsonName(), recordConsumer);
+        }
+        // Sideloaded objects may come after the records in the page
+        final List<JsonNode> records = new ArrayList<>();
+        final JsonNode fields = getZendeskRestClient().doGetRecords(url, task, isPreview, task.getTarget().getJsonName(), records::add);
+        getIncludePlanner().joinSideloads(records, fields);
+        records.forEach(recordConsumer);
+        return fields;
+    }
+
+    private static long getRecordTime(final JsonNode recordJsonNode)
+    {
+        return ZendeskDateUtils.isoToEpochSecond(recordJsonNode.get(ZendeskConstants.Field.UPDATED_AT).asText());
+    }
+
+    /**
+     * @return the time the pages are sorted by
+     */
+    private static long getPaginationTime(final JsonNode recordJsonNode)
+    {
+        if (recordJsonNode.hasNonNull(ZendeskConstants.Field.GENERATED_TIMESTAMP)) {
+            return recordJsonNode.get(ZendeskConstants.Field.GENERATED_TIMESTAMP).asLong();
+        }
+        return getRecordTime(recordJsonNode);
+    }
+
+    /**
+     * @param lastPageRecord last record of a page, filtered out or not
+     * @return whether the next pages are past the shard window
+     */
+    private static boolean isPastWindow(final JsonNode lastPageRecord, final long[] shardWindow)
+    {
+        return shardWindow != null && lastPageRecord != null && getPaginationTime(lastPageRecord) > shardWindow[1];
     }
 
     private String buildPath(long startTime)
         throws URISyntaxException
     {
-        return ZendeskUtils.getURIBuilder(task.getLoginUrl()).setPath(ZendeskConstants.Url.API + "/" + "incremental" + "/" + task.getTarget().toString() + "/" + "cursor.json").build().toString() + "?start_time=" + startTime;
+        return ZendeskUtils.getURIBuilder(task.getLoginUrl()).setPath(ZendeskConstants.Url.API + "/" + "incremental" + "/" + task.getTarget().toString() + "/" + "cursor.json").build().toString() + "?start_time=" + startTime
+                + (getIncludePlanner().getPageIncludeParameter().isEmpty() ? "" : "&include=" + getIncludePlanner().getPageIncludeParameter());
     }
 
-    private JsonNode fetchResultFromPath(String path)
+    /**
+     * Fetch the includes of the record on the threads of the rest client, the page loop goes on meanwhile.
+     */
+    private void importRecord(final JsonNode recordJsonNode, final PendingRecords pendingRecords, final RecordImporter recordImporter)
     {
-        final String response = getZendeskRestClient().doGet(path, task, Exec.isPreview());
-        return ZendeskUtils.parseJsonObject(response);
+        if (!getIncludeFetcher().hasIncludes()) {
+            recordImporter.addRecord(recordJsonNode);
+            return;
+        }
+        final long recordBytes = MemoryBudget.estimateBytes(recordJsonNode);
+        pendingRecords.take(recordBytes);
+        pendingRecords.add(getIncludeFetcher().fetchAsync(recordJsonNode), recordImporter, recordBytes);
     }
 
-    private void fetchSubResourceAndAddToImporter(final JsonNode jsonNode, final ZendeskInputPlugin.PluginTask task, final RecordImporter recordImporter)
+    private IncludeFetcher getIncludeFetcher()
     {
-        task.getIncludes().forEach(include -> {
-            final String relatedObjectName = include.trim();
-
-            final URIBuilder uriBuilder = ZendeskUtils.getURIBuilder(task.getLoginUrl()).setPath(ZendeskConstants.Url.API + "/" + task.getTarget().toString() + "/" + jsonNode.get(ZendeskConstants.Field.ID).asText() + "/" + relatedObjectName + ".json");
-            try {
-                final JsonNode result = getDataFromPath(uriBuilder.toString(), 0, false, 0);
-                if (result != null && result.has(relatedObjectName)) {
-                    ((ObjectNode) jsonNode).set(include, result.get(relatedObjectName));
-                }
-            }
-            catch (final ConfigException e) {
-                // Sometimes we get 404 when having invalid endpoint, so ignore when we get 404 InvalidEndpoint
-                if (!(e.getCause() instanceof ZendeskException && ((ZendeskException) e.getCause()).getStatusCode() == HttpStatus.SC_NOT_FOUND)) {
-                    throw e;
-                }
-            }
-        });
+        if (includeFetcher == null) {
+            includeFetcher = new IncludeFetcher(task, getIncludePlanner(), this::getZendeskRestClient);
+        }
+        return includeFetcher;
+    }
 
-        recordImporter.addRecord(jsonNode);
+    private IncludePlanner getIncludePlanner()
+    {
+        if (includePlanner == null) {
+            // The after_url of the pages keeps the include parameter of the first one
+            includePlanner = new IncludePlanner(task, true);
+        }
+        return includePlanner;
     }
 
     private void storeStartTimeForConfigDiff(final TaskReport taskReport, final long nextStartTime)
@@ -49,7 +49,9 @@ public class ZendeskCustomObjectService implements ZendeskService
         paths.parallelStream().forEach(path -> StreamSupport.stream(new CustomObjectSpliterator(path, getZendeskRestClient(), task, Exec.isPreview()), !Exec.isPreview())
                 .forEach(recordImporter::addRecord));
 
-        return CONFIG_MAPPER_FACTORY.newTaskReport();
+        final TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        getZendeskRestClient().addStatsToTaskReport(taskReport);
+        return taskReport;
     }
 
     @Override
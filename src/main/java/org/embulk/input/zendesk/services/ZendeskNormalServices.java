@@ -1,33 +1,40 @@
 package org.embulk.input.zendesk.services;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.utils.URIBuilder;
-import org.embulk.config.ConfigException;
 import org.embulk.config.TaskReport;
 import org.embulk.input.zendesk.RecordImporter;
 import org.embulk.input.zendesk.ZendeskInputPlugin;
 import org.embulk.input.zendesk.clients.ZendeskRestClient;
+import org.embulk.input.zendesk.models.DedupStrategy;
+import org.embulk.input.zendesk.models.HttpEngine;
 import org.embulk.input.zendesk.models.Target;
-import org.embulk.input.zendesk.models.ZendeskException;
+import org.embulk.input.zendesk.stream.PagePrefetcher;
+import org.embulk.input.zendesk.utils.BoundaryRecordIdSet;
+import org.embulk.input.zendesk.utils.LatestRecordBuffer;
+import org.embulk.input.zendesk.utils.MemoryBudget;
+import org.embulk.input.zendesk.utils.RecordIdSet;
 import org.embulk.input.zendesk.utils.ZendeskConstants;
 import org.embulk.input.zendesk.utils.ZendeskDateUtils;
 import org.embulk.input.zendesk.utils.ZendeskUtils;
+import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
 
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER_FACTORY;
 
@@ -39,6 +46,10 @@ public abstract class ZendeskNormalServices implements ZendeskService
 
     private ZendeskRestClient zendeskRestClient;
 
+    private IncludeFetcher includeFetcher;
+
+    private IncludePlanner includePlanner;
+
     protected ZendeskNormalServices(final ZendeskInputPlugin.PluginTask task)
     {
         this.task = task;
@@ -48,13 +59,23 @@ public abstract class ZendeskNormalServices implements ZendeskService
     {
         TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
 
-        if (isSupportIncremental()) {
-            importDataForIncremental(task, recordImporter, taskReport);
+        try {
+            if (isSupportIncremental()) {
+                importDataForIncremental(task, taskIndex, recordImporter, taskReport);
+            }
+            else {
+                importDataForNonIncremental(task, taskIndex, recordImporter);
+            }
+
+            getZendeskRestClient().addStatsToTaskReport(taskReport);
+            // Includes are only pruned for the incremental targets
+            if (isSupportIncremental() && !task.getIncludes().isEmpty()) {
+                getIncludeFetcher().addStatsToTaskReport(taskReport);
+            }
         }
-        else {
-            importDataForNonIncremental(task, taskIndex, recordImporter);
+        finally {
+            closeIncludeFetcher();
         }
-
         return taskReport;
     }
 
@@ -70,6 +91,38 @@ public abstract class ZendeskNormalServices implements ZendeskService
 
     protected abstract String buildURI(int page, long startTime);
 
+    /**
+     * @return whether the incremental page request of the target accepts the include parameter
+     */
+    protected boolean isSideloadSupported()
+    {
+        return false;
+    }
+
+    IncludePlanner getIncludePlanner()
+    {
+        if (includePlanner == null) {
+            includePlanner = new IncludePlanner(task, isSideloadSupported());
+        }
+        return includePlanner;
+    }
+
+    private IncludeFetcher getIncludeFetcher()
+    {
+        if (includeFetcher == null) {
+            includeFetcher = new IncludeFetcher(task, getIncludePlanner(), this::getZendeskRestClient);
+        }
+        return includeFetcher;
+    }
+
+    private void closeIncludeFetcher()
+    {
+        if (includeFetcher != null) {
+            includeFetcher.close();
+            includeFetcher = null;
+        }
+    }
+
     @VisibleForTesting
     protected ZendeskRestClient getZendeskRestClient()
     {
@@ -79,11 +132,13 @@ public abstract class ZendeskNormalServices implements ZendeskService
         return zendeskRestClient;
     }
 
-    private void importDataForIncremental(final ZendeskInputPlugin.PluginTask task, final RecordImporter recordImporter, final TaskReport taskReport)
+    private void importDataForIncremental(final ZendeskInputPlugin.PluginTask task, final int taskIndex, final RecordImporter recordImporter, final TaskReport taskReport)
     {
         long initStartTime = 0;
         long startTime = 0;
         long endTime = Long.MAX_VALUE;
+        long minPaginationTime = Long.MIN_VALUE;
+        long maxPaginationTime = Long.MAX_VALUE;
 
         if (task.getStartTime().isPresent()) {
             startTime = ZendeskDateUtils.getStartTime(task.getStartTime().get());
@@ -94,93 +149,108 @@ public abstract class ZendeskNormalServices implements ZendeskService
             endTime = ZendeskDateUtils.isoToEpochSecond(task.getEndTime().get());
         }
 
+        // The end_time of the task applies to the time of every record, pages stop at the end of the shard window
+        final long recordEndTime = endTime;
+        final long[] shardWindow = getShardWindow(task, initStartTime, taskIndex);
+        if (shardWindow != null) {
+            // A record belongs to the shard whose window contains the time pages are sorted by, so that shards never import the same record
+            // and every record is on the pages read by its shard. Its updated_at may be earlier and out of order
+            if (!isOpenWindow(shardWindow)) {
+                endTime = shardWindow[1];
+                maxPaginationTime = shardWindow[1];
+            }
+            if (taskIndex > 0) {
+                minPaginationTime = shardWindow[0];
+                startTime = shardWindow[0];
+            }
+        }
+
         // For incremental target, we will run in one task but split in multiple threads inside for data deduplication.
         // Run with incremental will contain duplicated data.
         ThreadPoolExecutor pool = null;
+        final PendingRecords pendingRecords = new PendingRecords(new MemoryBudget(task.getMaxPendingRecordsMb() * 1024L * 1024L));
+        // Preview stops at the first record, nothing to prefetch
+        final PagePrefetcher prefetcher = task.getPrefetchDepth() > 0 && !Exec.isPreview() ? createIncrementalPrefetcher(startTime, endTime) : null;
+        // Preview shows the first record as is
+        final LatestRecordBuffer latestRecords = task.getDedup() && task.getDedupStrategy() == DedupStrategy.LATEST && !Exec.isPreview()
+                ? new LatestRecordBuffer(task.getDedupMemoryLimitMb() * 1024L * 1024L)
+                : null;
         try {
-            final Set<String> knownIds = ConcurrentHashMap.newKeySet();
+            final RecordIdSet knownIds = new RecordIdSet();
+            final BoundaryRecordIdSet boundaryIds = new BoundaryRecordIdSet();
+            final Predicate<JsonNode> isNewRecord = task.getDedupStrategy() == DedupStrategy.BOUNDARY
+                    ? recordJsonNode -> boundaryIds.add(recordJsonNode.get(ZendeskConstants.Field.ID), getPaginationTime(recordJsonNode))
+                    : recordJsonNode -> knownIds.add(recordJsonNode.get(ZendeskConstants.Field.ID));
+            // The queue is bounded by the bytes of the pending records instead, so the pool runs its threads at once
             pool = new ThreadPoolExecutor(
-                    10, 100, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>()
+                    task.getIncludeThreads(), task.getIncludeThreads(), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>()
             );
 
-            long apiEndTime = 0;
             while (true) {
-                int recordCount = 0;
-
-                // Page argument isn't used in incremental API so we just set it to 0
-                final JsonNode result = getDataFromPath("", 0, false, startTime);
-                final Iterator<JsonNode> iterator = ZendeskUtils.getListRecords(result, task.getTarget().getJsonName());
-                apiEndTime = result.get(ZendeskConstants.Field.END_TIME).asLong();
-
-                int numberOfRecords = 0;
-                if (result.has(ZendeskConstants.Field.COUNT)) {
-                    numberOfRecords = result.get(ZendeskConstants.Field.COUNT).asInt();
-                }
-
-                while (iterator.hasNext()) {
-                    final JsonNode recordJsonNode = iterator.next();
-
-                    if (isUpdatedBySystem(recordJsonNode, startTime)) {
-                        continue;
-                    }
-
-                    // Contain some records  that later than end_time. Checked and don't add.
-                    // Because the api already sorted by updated_at or timestamp for ticket_events, we just need to break no need to check further.
-                    if (apiEndTime > endTime) {
-                        long checkedTime = 0;
-                        if (recordJsonNode.has(ZendeskConstants.Field.UPDATED_AT) && !recordJsonNode.get(ZendeskConstants.Field.UPDATED_AT).isNull()) {
-                            checkedTime = ZendeskDateUtils.isoToEpochSecond(recordJsonNode.get(ZendeskConstants.Field.UPDATED_AT).textValue());
-                        }
+                // Records updated before the start_time of the job were imported by the previous job, whatever page or shard they're on
+                final IncrementalRecordConsumer recordConsumer = new IncrementalRecordConsumer(initStartTime, recordEndTime, minPaginationTime, maxPaginationTime, isNewRecord,
+                        latestRecords, pool, pendingRecords, recordImporter);
 
-                        // ticket events is updated by system not user's action so it only has timestamp field
-                        if (task.getTarget().equals(Target.TICKET_EVENTS) && recordJsonNode.has("timestamp") && !recordJsonNode.get("timestamp").isNull()) {
-                            checkedTime = recordJsonNode.get("timestamp").asLong();
-                        }
-
-                        // scores (or response) is only store rated_at time
-                        if (task.getTarget().equals(Target.SCORES) && recordJsonNode.has("rated_at") && !recordJsonNode.get("rated_at").isNull()) {
-                            checkedTime = ZendeskDateUtils.isoToEpochSecond(recordJsonNode.get("rated_at").textValue());
-                        }
-
-                        if (checkedTime > endTime) {
-                            break;
+                final JsonNode result;
+                // Records are imported while the page downloads, waiting for the memory budget happens between pages
+                pendingRecords.reservePage();
+                try {
+                    if (prefetcher != null) {
+                        final PagePrefetcher.Page page = prefetcher.next();
+                        if (page == null) {
+                            throw new DataException("Missing incremental page from start_time '" + startTime + "'");
                         }
+                        page.getRecords().forEach(recordConsumer);
+                        result = page.getFields();
                     }
-
-                    if (task.getDedup()) {
-                        final String recordID = recordJsonNode.get(ZendeskConstants.Field.ID).asText();
-
-                        // add success -> no duplicate
-                        if (!knownIds.add(recordID)) {
-                            continue;
-                        }
-                    }
-
-                    pool.submit(() -> fetchSubResourceAndAddToImporter(recordJsonNode, task, recordImporter));
-                    recordCount++;
-                    if (Exec.isPreview()) {
-                        return;
+                    else {
+                        // Page argument isn't used in incremental API so we just set it to 0
+                        result = getIncrementalPage(buildURI(0, startTime), recordConsumer);
                     }
                 }
+                finally {
+                    pendingRecords.releasePage();
+                }
+                if (recordConsumer.isPreviewCompleted()) {
+                    pendingRecords.awaitAll();
+                    return;
+                }
 
-                logger.info("Fetched '{}' records from start_time '{}'", recordCount, startTime);
-
-                // https://developer.zendesk.com/rest_api/docs/support/incremental_export#pagination
-                // When there are more than 1000 records share the same time stamp, the count > 1000
-                startTime = startTime == apiEndTime
-                        ? apiEndTime + 1
-                        : apiEndTime;
+                logger.info("Fetched '{}' records from start_time '{}'", recordConsumer.getRecordCount(), startTime);
 
-                if (numberOfRecords < ZendeskConstants.Misc.MAXIMUM_RECORDS_INCREMENTAL || startTime > endTime) {
+                final long pageStartTime = startTime;
+                startTime = getNextStartTime(pageStartTime, result);
+                if (!hasNextPage(result, startTime, endTime)) {
                     break;
                 }
+                boundaryIds.nextPage(startTime);
             }
 
+            if (latestRecords != null) {
+                // Includes are only fetched for the versions that are imported
+                final ThreadPoolExecutor importPool = pool;
+                latestRecords.forEachLatest(recordJsonNode -> importRecord(recordJsonNode, importPool, pendingRecords, recordImporter));
+            }
+            pendingRecords.awaitAll();
+            logger.info("Waited '{}' ms for pending records to be imported", pendingRecords.getMemoryBudget().getWaitMillis());
             if (!Exec.isPreview()) {
-                storeStartTimeForConfigDiff(taskReport, initStartTime, startTime);
+                if (shardWindow != null && !isOpenWindow(shardWindow)) {
+                    storeShardEndTimeForConfigDiff(taskReport, initStartTime, shardWindow[1]);
+                }
+                else {
+                    storeStartTimeForConfigDiff(taskReport, initStartTime, startTime);
+                }
             }
         }
         finally {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+            if (latestRecords != null) {
+                latestRecords.close();
+            }
+            // Don't let records still being fetched reach the importer once we leave
+            pendingRecords.await();
             if (pool != null) {
                 pool.shutdown();
                 try {
@@ -194,6 +264,92 @@ public abstract class ZendeskNormalServices implements ZendeskService
         }
     }
 
+    private PagePrefetcher createIncrementalPrefetcher(final long startTime, final long endTime)
+    {
+        final AtomicLong pageStartTime = new AtomicLong(startTime);
+        return new PagePrefetcher(buildURI(0, startTime), task.getPrefetchDepth(),
+                url -> {
+                    final List<JsonNode> records = new ArrayList<>();
+                    final JsonNode fields = getIncrementalPage(url, records::add);
+                    return new PagePrefetcher.Page(records, fields);
+                },
+                page -> {
+                    // Same paging as the consumer loop, the next url is known once the fields of the page are read
+                    final long nextStartTime = getNextStartTime(pageStartTime.get(), page.getFields());
+                    if (!hasNextPage(page.getFields(), nextStartTime, endTime)) {
+                        return null;
+                    }
+                    pageStartTime.set(nextStartTime);
+                    return buildURI(0, nextStartTime);
+                },
+                getZendeskRestClient()::abortRequestOf);
+    }
+
+    /**
+     * Stream the records of the page to the consumer, or hand them once the page is read when the sideloads have to be joined.
+     */
+    private JsonNode getIncrementalPage(final String url, final Consumer<JsonNode> recordConsumer)
+    {
+        if (!getIncludePlanner().hasSideloads()) {
+            return getZendeskRestClient().doGetRecords(url, task, false, task.getTarget().getJsonName(), recordConsumer);
+        }
+        // Sideloaded objects may come after the records in the page
+        final List<JsonNode> records = new ArrayList<>();
+        final JsonNode fields = getZendeskRestClient().doGetRecords(url, task, false, task.getTarget().getJsonName(), records::add);
+        getIncludePlanner().joinSideloads(records, fields);
+        records.forEach(recordConsumer);
+        return fields;
+    }
+
+    private static long getNextStartTime(final long startTime, final JsonNode result)
+    {
+        final long apiEndTime = result.get(ZendeskConstants.Field.END_TIME).asLong();
+        // https://developer.zendesk.com/rest_api/docs/support/incremental_export#pagination
+        // When there are more than 1000 records share the same time stamp, the count > 1000
+        return startTime == apiEndTime
+                ? apiEndTime + 1
+                : apiEndTime;
+    }
+
+    private static boolean hasNextPage(final JsonNode result, final long nextStartTime, final long endTime)
+    {
+        int numberOfRecords = 0;
+        if (result.has(ZendeskConstants.Field.COUNT)) {
+            numberOfRecords = result.get(ZendeskConstants.Field.COUNT).asInt();
+        }
+        return numberOfRecords >= ZendeskConstants.Misc.MAXIMUM_RECORDS_INCREMENTAL && nextStartTime <= endTime;
+    }
+
+    private long getRecordTime(final JsonNode recordJsonNode)
+    {
+        long checkedTime = 0;
+        if (recordJsonNode.has(ZendeskConstants.Field.UPDATED_AT) && !recordJsonNode.get(ZendeskConstants.Field.UPDATED_AT).isNull()) {
+            checkedTime = ZendeskDateUtils.isoToEpochSecond(recordJsonNode.get(ZendeskConstants.Field.UPDATED_AT).textValue());
+        }
+
+        // ticket events is updated by system not user's action so it only has timestamp field
+        if (task.getTarget().equals(Target.TICKET_EVENTS) && recordJsonNode.has("timestamp") && !recordJsonNode.get("timestamp").isNull()) {
+            checkedTime = recordJsonNode.get("timestamp").asLong();
+        }
+
+        // scores (or response) is only store rated_at time
+        if (task.getTarget().equals(Target.SCORES) && recordJsonNode.has("rated_at") && !recordJsonNode.get("rated_at").isNull()) {
+            checkedTime = ZendeskDateUtils.isoToEpochSecond(recordJsonNode.get("rated_at").textValue());
+        }
+        return checkedTime;
+    }
+
+    /**
+     * @return the time the incremental pages are sorted by
+     */
+    private long getPaginationTime(final JsonNode recordJsonNode)
+    {
+        if (recordJsonNode.has(ZendeskConstants.Field.GENERATED_TIMESTAMP) && !recordJsonNode.get(ZendeskConstants.Field.GENERATED_TIMESTAMP).isNull()) {
+            return recordJsonNode.get(ZendeskConstants.Field.GENERATED_TIMESTAMP).asLong();
+        }
+        return getRecordTime(recordJsonNode);
+    }
+
     private void storeStartTimeForConfigDiff(final TaskReport taskReport, final long initStartTime, final long resultEndTime)
     {
         if (task.getIncremental()) {
@@ -225,31 +381,70 @@ public abstract class ZendeskNormalServices implements ZendeskService
         }
     }
 
-    private void fetchSubResourceAndAddToImporter(final JsonNode jsonNode, final ZendeskInputPlugin.PluginTask task, final RecordImporter recordImporter)
+    /**
+     * The shard imports its whole window, so the next run starts after the window whatever the pages returned.
+     */
+    private void storeShardEndTimeForConfigDiff(final TaskReport taskReport, final long initStartTime, final long windowEndTime)
     {
-        task.getIncludes().forEach(include -> {
-            final String relatedObjectName = include.trim();
-
-            final URIBuilder uriBuilder = ZendeskUtils.getURIBuilder(task.getLoginUrl())
-                    .setPath(ZendeskConstants.Url.API
-                            + "/" + task.getTarget().toString()
-                            + "/" + jsonNode.get(ZendeskConstants.Field.ID).asText()
-                            + "/" + relatedObjectName + ".json");
-            try {
-                final JsonNode result = getDataFromPath(uriBuilder.toString(), 0, false, 0);
-                if (result != null && result.has(relatedObjectName)) {
-                    ((ObjectNode) jsonNode).set(include, result.get(relatedObjectName));
-                }
-            }
-            catch (final ConfigException e) {
-                // Sometimes we get 404 when having invalid endpoint, so ignore when we get 404 InvalidEndpoint
-                if (!(e.getCause() instanceof ZendeskException && ((ZendeskException) e.getCause()).getStatusCode() == HttpStatus.SC_NOT_FOUND)) {
-                    throw e;
-                }
+        if (task.getIncremental()) {
+            final long nextStartTime = windowEndTime + 1;
+            if (task.getEndTime().isPresent()) {
+                long endTime = ZendeskDateUtils.isoToEpochSecond(task.getEndTime().get());
+                taskReport.set(ZendeskConstants.Field.END_TIME, nextStartTime + endTime - initStartTime);
             }
-        });
+            taskReport.set(ZendeskConstants.Field.START_TIME, nextStartTime);
+        }
+    }
+
+    /**
+     * Without end_time the range is split up to the time of the transaction, yet the API may not show every record updated
+     * before it. The last window is left open up to the end of the export, so such records are imported now or by the next run.
+     *
+     * @return the inclusive time window of the task, null when the export isn't sharded
+     */
+    static long[] getShardWindow(final ZendeskInputPlugin.PluginTask task, final long startTime, final int taskIndex)
+    {
+        // Not set at all when the task isn't made by the transaction
+        final Optional<Long> shardedEndTime = task.getShardedEndTime();
+        if (shardedEndTime == null || !shardedEndTime.isPresent()) {
+            return null;
+        }
+        final int numberOfShards = ZendeskUtils.numberOfShards(startTime, shardedEndTime.get(), task.getIncrementalShards());
+        final long[] window = ZendeskUtils.getShardWindow(startTime, shardedEndTime.get(), numberOfShards, taskIndex);
+        if (taskIndex == numberOfShards - 1 && !task.getEndTime().isPresent()) {
+            window[1] = Long.MAX_VALUE;
+        }
+        return window;
+    }
 
-        recordImporter.addRecord(jsonNode);
+    /**
+     * @return whether the window ends where the export does, its next start_time is then the one returned by the API
+     */
+    static boolean isOpenWindow(final long[] shardWindow)
+    {
+        return shardWindow[1] == Long.MAX_VALUE;
+    }
+
+    private void importRecord(final JsonNode recordJsonNode, final ThreadPoolExecutor pool, final PendingRecords pendingRecords, final RecordImporter recordImporter)
+    {
+        // Taken from the page reservation: the page loop waits between pages while too many records are still waiting for their includes
+        final long recordBytes = MemoryBudget.estimateBytes(recordJsonNode);
+        pendingRecords.take(recordBytes);
+        // Resolved here, the lazy getter isn't safe to call from the pool threads
+        final IncludeFetcher includeFetcher = getIncludeFetcher();
+        if (task.getHttpEngine() == HttpEngine.ASYNC && includeFetcher.hasIncludes()) {
+            pendingRecords.add(includeFetcher.fetchAsync(recordJsonNode), recordImporter, recordBytes);
+        }
+        else {
+            pool.submit(() -> {
+                try {
+                    includeFetcher.fetchAndAddToImporter(recordJsonNode, recordImporter);
+                }
+                finally {
+                    pendingRecords.getMemoryBudget().release(recordBytes);
+                }
+            });
+        }
     }
 
     private boolean isUpdatedBySystem(final JsonNode recordJsonNode, final long startTime)
@@ -274,16 +469,141 @@ public abstract class ZendeskNormalServices implements ZendeskService
 
     private void importDataForNonIncremental(final ZendeskInputPlugin.PluginTask task, final int taskIndex, RecordImporter recordImporter)
     {
-        // Page start from 1 => page = taskIndex + 1
-        final JsonNode result = getDataFromPath("", taskIndex + 1, false, 0);
-        final Iterator<JsonNode> iterator = ZendeskUtils.getListRecords(result, task.getTarget().getJsonName());
+        final AtomicBoolean isPreviewCompleted = new AtomicBoolean(false);
+        final IncludeFetcher includeFetcher = getIncludeFetcher();
+        // The async engine holds an in-flight place while the page is read, includes waiting for one from there would never start
+        final PendingRecords pendingRecords = task.getHttpEngine() == HttpEngine.ASYNC && includeFetcher.hasIncludes()
+                ? new PendingRecords(new MemoryBudget(task.getMaxPendingRecordsMb() * 1024L * 1024L))
+                : null;
+
+        try {
+            if (pendingRecords != null) {
+                // Records past the budget are taken anyway instead of waiting for includes with the place held
+                pendingRecords.reservePage();
+            }
+            try {
+                // Page start from 1 => page = taskIndex + 1
+                getZendeskRestClient().doGetRecords(buildURI(taskIndex + 1, 0), task, false, task.getTarget().getJsonName(), recordJsonNode -> {
+                    if (isPreviewCompleted.get()) {
+                        return;
+                    }
+                    if (pendingRecords != null) {
+                        final long recordBytes = MemoryBudget.estimateBytes(recordJsonNode);
+                        pendingRecords.take(recordBytes);
+                        pendingRecords.add(includeFetcher.fetchAsync(recordJsonNode), recordImporter, recordBytes);
+                    }
+                    else {
+                        includeFetcher.fetchAndAddToImporter(recordJsonNode, recordImporter);
+                    }
+
+                    if (Exec.isPreview()) {
+                        isPreviewCompleted.set(true);
+                    }
+                });
+            }
+            finally {
+                if (pendingRecords != null) {
+                    pendingRecords.releasePage();
+                }
+            }
+            if (pendingRecords != null) {
+                pendingRecords.awaitAll();
+            }
+        }
+        finally {
+            if (pendingRecords != null) {
+                // Don't let records still being fetched reach the importer once we leave
+                pendingRecords.await();
+            }
+        }
+    }
+
+    /**
+     * Handle records of an incremental page while it is being downloaded.
+     * The page end_time is only known once the whole page is read, so each record is checked against the end_time by itself.
+     */
+    private class IncrementalRecordConsumer implements Consumer<JsonNode>
+    {
+        private final long systemUpdateTime;
+        private final long endTime;
+        private final long minPaginationTime;
+        private final long maxPaginationTime;
+        private final Predicate<JsonNode> isNewRecord;
+        private final LatestRecordBuffer latestRecords;
+        private final ThreadPoolExecutor pool;
+        private final PendingRecords pendingRecords;
+        private final RecordImporter recordImporter;
+        private int recordCount;
+        private boolean isPreviewCompleted;
+
+        IncrementalRecordConsumer(final long systemUpdateTime, final long endTime, final long minPaginationTime, final long maxPaginationTime, final Predicate<JsonNode> isNewRecord,
+                final LatestRecordBuffer latestRecords, final ThreadPoolExecutor pool, final PendingRecords pendingRecords, final RecordImporter recordImporter)
+        {
+            this.systemUpdateTime = systemUpdateTime;
+            this.endTime = endTime;
+            this.minPaginationTime = minPaginationTime;
+            this.maxPaginationTime = maxPaginationTime;
+            this.isNewRecord = isNewRecord;
+            this.latestRecords = latestRecords;
+            this.pool = pool;
+            this.pendingRecords = pendingRecords;
+            this.recordImporter = recordImporter;
+        }
+
+        @Override
+        public void accept(final JsonNode recordJsonNode)
+        {
+            if (isPreviewCompleted) {
+                return;
+            }
+
+            if (isUpdatedBySystem(recordJsonNode, systemUpdateTime)) {
+                return;
+            }
+
+            // Pages are sorted by generated_timestamp, not by the record time, so a record later than end_time
+            // can be followed by earlier ones: check every record
+            if (endTime != Long.MAX_VALUE && getRecordTime(recordJsonNode) > endTime) {
+                return;
+            }
 
-        while (iterator.hasNext()) {
-            fetchSubResourceAndAddToImporter(iterator.next(), task, recordImporter);
+            // Belongs to the previous or the next shard
+            if (minPaginationTime != Long.MIN_VALUE || maxPaginationTime != Long.MAX_VALUE) {
+                final long paginationTime = getPaginationTime(recordJsonNode);
+                if (paginationTime < minPaginationTime || paginationTime > maxPaginationTime) {
+                    return;
+                }
+            }
 
+            if (latestRecords != null) {
+                // Imported once every page is read
+                latestRecords.add(recordJsonNode.get(ZendeskConstants.Field.ID).asText(), getRecordTime(recordJsonNode), recordJsonNode);
+                recordCount++;
+                return;
+            }
+
+            if (task.getDedup()) {
+                // add success -> no duplicate
+                if (!isNewRecord.test(recordJsonNode)) {
+                    return;
+                }
+            }
+
+            importRecord(recordJsonNode, pool, pendingRecords, recordImporter);
+            recordCount++;
             if (Exec.isPreview()) {
-                break;
+                isPreviewCompleted = true;
             }
         }
+
+        int getRecordCount()
+        {
+            return recordCount;
+        }
+
+        boolean isPreviewCompleted()
+        {
+            return isPreviewCompleted;
+        }
     }
 }
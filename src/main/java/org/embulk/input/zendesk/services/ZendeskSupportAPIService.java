@@ -18,6 +18,12 @@ public class ZendeskSupportAPIService extends ZendeskNormalServices
         return !(task.getTarget().equals(Target.TICKET_FORMS) || task.getTarget().equals(Target.TICKET_FIELDS));
     }
 
+    @Override
+    protected boolean isSideloadSupported()
+    {
+        return isSupportIncremental();
+    }
+
     @Override
     protected String buildURI(final int page, long startTime)
     {
@@ -28,6 +34,9 @@ public class ZendeskSupportAPIService extends ZendeskNormalServices
             if (Target.TICKET_METRICS.equals(task.getTarget())) {
                 uriBuilder.setParameter("include", "metric_sets");
             }
+            else if (!getIncludePlanner().getPageIncludeParameter().isEmpty()) {
+                uriBuilder.setParameter("include", getIncludePlanner().getPageIncludeParameter());
+            }
         }
         else {
             uriBuilder.setParameter("sort_by", "id")
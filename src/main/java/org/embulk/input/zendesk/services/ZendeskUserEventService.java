@@ -76,6 +76,7 @@ public class ZendeskUserEventService implements ZendeskService
                     });
                 }
         );
+        getZendeskRestClient().addStatsToTaskReport(taskReport);
         return taskReport;
     }
 
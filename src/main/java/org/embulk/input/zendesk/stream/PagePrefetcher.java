@@ -0,0 +1,142 @@
+package org.embulk.input.zendesk.stream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.DataException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Fetch the next pages in a background thread while the current one is processed.
+ *
+ * Pages are handed out strictly in order. The producer runs at most depth pages ahead of the consumer.
+ */
+public class PagePrefetcher implements AutoCloseable
+{
+    private static final Logger logger = LoggerFactory.getLogger(PagePrefetcher.class);
+
+    private static final Page END = new Page(null, null);
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final BlockingQueue<Object> pages;
+    private final Thread producer;
+    private final Consumer<Thread> abortFetch;
+
+    /**
+     * @param fetchPage fetch the page at the url
+     * @param nextUrl url of the page after the given one, null when it's the last one
+     * @param abortFetch abort the request being sent by the given thread, blocking reads don't stop on interrupt
+     */
+    public PagePrefetcher(final String firstUrl, final int depth, final Function<String, Page> fetchPage, final Function<Page, String> nextUrl,
+            final Consumer<Thread> abortFetch)
+    {
+        this.pages = new ArrayBlockingQueue<>(depth);
+        this.abortFetch = abortFetch;
+        this.producer = new ThreadFactoryBuilder().setNameFormat("zendesk-page-prefetch-%d").setDaemon(true).build().newThread(() -> {
+            try {
+                String url = firstUrl;
+                while (url != null && !Thread.currentThread().isInterrupted()) {
+                    final Page page = fetchPage.apply(url);
+                    pages.put(page);
+                    url = nextUrl.apply(page);
+                }
+                pages.put(END);
+            }
+            catch (final InterruptedException e) {
+                // Closed by the consumer
+            }
+            catch (final Throwable e) {
+                // Handed to the consumer, an error left here would only end the thread and leave next() waiting
+                try {
+                    pages.put(e);
+                }
+                catch (final InterruptedException interrupted) {
+                    // Closed by the consumer
+                }
+            }
+        });
+        this.producer.start();
+    }
+
+    /**
+     * @return the next page, null when there is no more page
+     */
+    public Page next()
+    {
+        final Object next;
+        try {
+            next = pages.take();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataException(e);
+        }
+        if (next instanceof DataException || next instanceof ConfigException) {
+            throw (RuntimeException) next;
+        }
+        if (next instanceof Error) {
+            throw (Error) next;
+        }
+        if (next instanceof Throwable) {
+            throw new DataException((Throwable) next);
+        }
+        return next == END ? null : (Page) next;
+    }
+
+    /**
+     * Stop the producer, along with the request it's sending, and drop the pages it fetched.
+     */
+    @Override
+    public void close()
+    {
+        producer.interrupt();
+        abortFetch.accept(producer);
+        final long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        try {
+            while (producer.isAlive() && System.currentTimeMillis() < deadline) {
+                // A producer blocked on a full queue gets its page in and sees the interrupt or the aborted request
+                pages.clear();
+                producer.join(50);
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pages.clear();
+        if (producer.isAlive()) {
+            logger.warn("Page prefetch thread '{}' is still running after '{}' ms", producer.getName(), CLOSE_TIMEOUT_MILLIS);
+        }
+    }
+
+    public static class Page
+    {
+        private final List<JsonNode> records;
+        private final JsonNode fields;
+
+        public Page(final List<JsonNode> records, final JsonNode fields)
+        {
+            this.records = records;
+            this.fields = fields;
+        }
+
+        public List<JsonNode> getRecords()
+        {
+            return records;
+        }
+
+        /**
+         * @return the top-level fields of the page other than the records
+         */
+        public JsonNode getFields()
+        {
+            return fields;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Ids of the records that the next incremental page can return again.
+ *
+ * A page starts at the end_time of the previous one, so only the records sharing the latest time of a page are returned twice.
+ * Only their ids are kept, the memory doesn't grow with the export. Not thread safe, records are checked in page order.
+ */
+public class BoundaryRecordIdSet
+{
+    private Set<String> previousPageIds = new HashSet<>();
+    private Set<String> latestIds = new HashSet<>();
+    private long latestTime = Long.MIN_VALUE;
+
+    /**
+     * @param recordTime time the pages are sorted by
+     * @return true if the id wasn't known yet
+     */
+    public boolean add(final JsonNode id, final long recordTime)
+    {
+        final String recordId = id.asText();
+        if (previousPageIds.contains(recordId)) {
+            return false;
+        }
+        if (recordTime > latestTime) {
+            latestIds.clear();
+            latestTime = recordTime;
+        }
+        return recordTime < latestTime || latestIds.add(recordId);
+    }
+
+    /**
+     * Forget the ids the next page can't return again.
+     */
+    public void nextPage(final long nextStartTime)
+    {
+        final Set<String> forgotten = previousPageIds;
+        forgotten.clear();
+        previousPageIds = latestTime >= nextStartTime ? latestIds : forgotten;
+        latestIds = latestTime >= nextStartTime ? forgotten : latestIds;
+        latestIds.clear();
+        latestTime = Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,131 @@
+package org.embulk.input.zendesk.utils;
+
+/**
+ * Concurrent set of primitive longs, with open addressing in independently locked stripes.
+ *
+ * A value takes 8 to 16 bytes instead of the boxed String, hash node and table slot of a concurrent hash set.
+ */
+public class ConcurrentLongSet
+{
+    // Power of 2, picked from the top bits of the hash so that the bottom bits stay for the slots of the stripe
+    private static final int STRIPE_BITS = 6;
+    private static final int INITIAL_STRIPE_CAPACITY = 64;
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    public ConcurrentLongSet()
+    {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return true if the value wasn't in the set yet
+     */
+    public boolean add(final long value)
+    {
+        final long hash = mix(value);
+        return stripes[(int) (hash >>> (Long.SIZE - STRIPE_BITS))].add(value, (int) hash);
+    }
+
+    public boolean contains(final long value)
+    {
+        final long hash = mix(value);
+        return stripes[(int) (hash >>> (Long.SIZE - STRIPE_BITS))].contains(value, (int) hash);
+    }
+
+    public long size()
+    {
+        long size = 0;
+        for (final Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    // Finalizer of MurmurHash3, ids are often sequential and would cluster in the slots otherwise
+    private static long mix(long value)
+    {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static final class Stripe
+    {
+        // 0 marks an empty slot, so the value 0 itself is tracked aside
+        private long[] slots = new long[INITIAL_STRIPE_CAPACITY];
+        private boolean hasZero;
+        private int size;
+
+        synchronized boolean add(final long value, final int hash)
+        {
+            if (value == 0) {
+                if (hasZero) {
+                    return false;
+                }
+                hasZero = true;
+                size++;
+                return true;
+            }
+
+            if (!insert(slots, value, hash)) {
+                return false;
+            }
+            size++;
+            // Keep the load factor under 0.75 so that probe sequences stay short
+            if (size * 4L > slots.length * 3L) {
+                grow();
+            }
+            return true;
+        }
+
+        synchronized boolean contains(final long value, final int hash)
+        {
+            if (value == 0) {
+                return hasZero;
+            }
+            final int mask = slots.length - 1;
+            for (int i = hash & mask; slots[i] != 0; i = (i + 1) & mask) {
+                if (slots[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        private void grow()
+        {
+            final long[] grown = new long[slots.length * 2];
+            for (final long value : slots) {
+                if (value != 0) {
+                    insert(grown, value, (int) mix(value));
+                }
+            }
+            slots = grown;
+        }
+
+        private static boolean insert(final long[] table, final long value, final int hash)
+        {
+            final int mask = table.length - 1;
+            int i = hash & mask;
+            while (table[i] != 0) {
+                if (table[i] == value) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = value;
+            return true;
+        }
+    }
+}
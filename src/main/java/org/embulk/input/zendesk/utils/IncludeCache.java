@@ -0,0 +1,404 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.DataException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Last fetched payload of each include, along with the updated_at of its record, kept across runs in a local directory.
+ *
+ * Entries are appended to a log and indexed in memory by a hash of their key, the index is rebuilt from the log when the
+ * cache is opened. The key and the updated_at are checked against the log when an entry is read, outside of the lock
+ * of the cache so that reads of different threads don't wait for each other.
+ * The index is sized from the maximum size, which it shares with the log. Once the log grows past the rest of it, or the
+ * index past the maximum number of entries, the oldest written entries are evicted: the log is rewritten with the most
+ * recently written ones, up to half the entries and half the size of the log.
+ * Tasks of the same process share the cache of a directory, other processes run without it.
+ */
+public class IncludeCache implements AutoCloseable
+{
+    private static final Logger logger = LoggerFactory.getLogger(IncludeCache.class);
+
+    private static final String LOG_FILE = "includes.log";
+    private static final String LOCK_FILE = "includes.lock";
+    private static final int MAX_ENTRIES = 1 << 20;
+    // A key, an updated_at and an empty list already take half of it
+    private static final int MIN_ENTRY_BYTES = 256;
+    private static final int APPEND_BUFFER_BYTES = 64 * 1024;
+    private static final Map<Path, IncludeCache> OPEN_CACHES = new HashMap<>();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Path directory;
+    private final int maxEntries;
+    private final IncludeCacheIndex index;
+    private final long maxLogBytes;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    // Shared by the reads of entries, the compaction replaces the log file once they're done
+    private final ReadWriteLock logLock = new ReentrantReadWriteLock();
+    private FileChannel reader;
+    private OutputStream appender;
+    // Including the appends still buffered, only the ones before flushedLength can be read from the log
+    private long logLength;
+    private long flushedLength;
+    private int references;
+
+    private IncludeCache(final Path directory, final long maxBytes, final int maxEntries, final FileChannel lockChannel, final FileLock lock)
+        throws IOException
+    {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.index = new IncludeCacheIndex(maxEntries);
+        this.maxLogBytes = Math.max(0, maxBytes - index.getMemoryBytes());
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        readLog();
+        openLog();
+    }
+
+    /**
+     * @return the cache of the directory, null when another process uses it
+     */
+    public static IncludeCache open(final String directory, final long maxBytes)
+    {
+        return open(directory, maxBytes, (int) Math.max(1, Math.min(MAX_ENTRIES, maxBytes / MIN_ENTRY_BYTES)));
+    }
+
+    @VisibleForTesting
+    static IncludeCache open(final String directory, final long maxBytes, final int maxEntries)
+    {
+        synchronized (OPEN_CACHES) {
+            try {
+                final Path path = Files.createDirectories(new File(directory).toPath()).toRealPath();
+                IncludeCache cache = OPEN_CACHES.get(path);
+                if (cache == null) {
+                    final FileChannel lockChannel = FileChannel.open(path.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    final FileLock lock = lockChannel.tryLock();
+                    if (lock == null) {
+                        lockChannel.close();
+                        logger.warn("Include cache '{}' is used by another process, fetch every include", path);
+                        return null;
+                    }
+                    cache = new IncludeCache(path, maxBytes, maxEntries, lockChannel, lock);
+                    OPEN_CACHES.put(path, cache);
+                    logger.info("Open include cache '{}' with '{}' entries, its index takes '{}' bytes", path, cache.index.size(), cache.index.getMemoryBytes());
+                }
+                cache.references++;
+                return cache;
+            }
+            catch (final IOException e) {
+                throw new ConfigException("Fail to open include cache '" + directory + "'", e);
+            }
+        }
+    }
+
+    /**
+     * @return the payload cached for the key, null when missing or fetched for another updated_at of the record
+     */
+    public JsonNode get(final String key, final String updatedAt)
+    {
+        final FileChannel entryReader;
+        final long offset;
+        final byte[] written;
+        synchronized (this) {
+            final int slot = index.find(hash(key));
+            if (slot < 0) {
+                return null;
+            }
+            offset = index.getOffset(slot);
+            written = new byte[index.getSize(slot)];
+            try {
+                if (offset + written.length > flushedLength) {
+                    flush();
+                }
+            }
+            catch (final IOException e) {
+                throw new DataException("Fail to read include cache '" + directory + "'", e);
+            }
+            // Taken before leaving the lock of the cache, the log can't be compacted until the entry is read
+            logLock.readLock().lock();
+            entryReader = reader;
+        }
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(written);
+            while (buffer.hasRemaining()) {
+                if (entryReader.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Entry at '" + offset + "' runs past the end of the log");
+                }
+            }
+        }
+        catch (final IOException e) {
+            throw new DataException("Fail to read include cache '" + directory + "'", e);
+        }
+        finally {
+            logLock.readLock().unlock();
+        }
+        try {
+            final DataInputStream input = new DataInputStream(new ByteArrayInputStream(written));
+            // Another key with the same hash, or the record was updated since
+            if (!readString(input, written.length).equals(key) || !readString(input, written.length).equals(updatedAt)) {
+                return null;
+            }
+            final byte[] payload = new byte[input.readInt()];
+            input.readFully(payload);
+            return mapper.readTree(payload);
+        }
+        catch (final IOException e) {
+            throw new DataException("Fail to read include cache '" + directory + "'", e);
+        }
+    }
+
+    public void put(final String key, final String updatedAt, final JsonNode payload)
+    {
+        try {
+            final long hash = hash(key);
+            final byte[] written = serialize(key, updatedAt, mapper.writeValueAsBytes(payload));
+            synchronized (this) {
+                appender.write(written);
+                // Also replaces another key with the same hash
+                index.put(hash, logLength, written.length);
+                logLength += written.length;
+
+                if (logLength > maxLogBytes || index.size() > maxEntries) {
+                    compact();
+                }
+            }
+        }
+        catch (final IOException e) {
+            throw new DataException("Fail to write include cache '" + directory + "'", e);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (OPEN_CACHES) {
+            if (--references > 0) {
+                return;
+            }
+            OPEN_CACHES.remove(directory);
+            try {
+                synchronized (this) {
+                    logLock.writeLock().lock();
+                    try {
+                        appender.close();
+                    }
+                    finally {
+                        reader.close();
+                        logLock.writeLock().unlock();
+                    }
+                }
+                lock.release();
+                lockChannel.close();
+            }
+            catch (final IOException e) {
+                logger.warn("Fail to close include cache '{}'", directory, e);
+            }
+        }
+    }
+
+    private void readLog()
+        throws IOException
+    {
+        final File logFile = getLogFile();
+        if (!logFile.exists()) {
+            return;
+        }
+        final long fileLength = logFile.length();
+        long offset = 0;
+        final CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        try (final DataInputStream input = new DataInputStream(counting)) {
+            while (true) {
+                final String key;
+                final int payloadLength;
+                try {
+                    key = readString(input, fileLength - counting.getCount());
+                    // The updated_at is checked on read only
+                    readString(input, fileLength - counting.getCount());
+                    payloadLength = readLength(input, fileLength - counting.getCount());
+                }
+                catch (final EOFException e) {
+                    break;
+                }
+                if (input.skipBytes(payloadLength) < payloadLength) {
+                    break;
+                }
+                final int entrySize = (int) (counting.getCount() - offset);
+                // Left from a previous run with a larger limit, only the newest ones are kept
+                if (index.isFull()) {
+                    index.retainFrom(index.getNewestOffset(maxEntries));
+                }
+                index.put(hash(key), offset, entrySize);
+                offset += entrySize;
+            }
+        }
+        // Drop an entry cut by a crash or with a corrupt length along with everything after it,
+        // the next ones are appended after the last complete one
+        if (fileLength > offset) {
+            logger.warn("Drop the last '{}' bytes of include cache '{}', incomplete or corrupt", fileLength - offset, directory);
+            try (final RandomAccessFile truncated = new RandomAccessFile(logFile, "rw")) {
+                truncated.setLength(offset);
+            }
+        }
+        if (index.size() > maxEntries) {
+            index.retainFrom(index.getNewestOffset(maxEntries));
+        }
+    }
+
+    private void openLog()
+        throws IOException
+    {
+        reader = FileChannel.open(getLogFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logLength = reader.size();
+        flushedLength = logLength;
+        appender = new BufferedOutputStream(new FileOutputStream(getLogFile(), true), APPEND_BUFFER_BYTES);
+    }
+
+    private void flush()
+        throws IOException
+    {
+        appender.flush();
+        flushedLength = logLength;
+    }
+
+    private void compact()
+        throws IOException
+    {
+        flush();
+        // The newest half of the entries, within half of the log size
+        final long fromOffset = Math.max(index.getNewestOffset(maxEntries / 2), logLength - maxLogBytes / 2);
+        index.retainFrom(fromOffset);
+
+        logLock.writeLock().lock();
+        try {
+            // Entries are copied in log order, a live one is the entry its hash points to
+            final File compactedFile = directory.resolve(LOG_FILE + ".compacted").toFile();
+            try (final DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(reader.position(0)), APPEND_BUFFER_BYTES));
+                    final OutputStream output = new BufferedOutputStream(new FileOutputStream(compactedFile), APPEND_BUFFER_BYTES)) {
+                long offset = 0;
+                long compactedOffset = 0;
+                while (offset < logLength) {
+                    final String key = readString(input, logLength - offset);
+                    final String updatedAt = readString(input, logLength - offset);
+                    final int payloadLength = readLength(input, logLength - offset);
+                    final int entrySize = headerSize(key, updatedAt) + payloadLength;
+                    final long hash = hash(key);
+                    final int slot = index.find(hash);
+                    if (slot >= 0 && index.getOffset(slot) == offset) {
+                        final byte[] payload = new byte[payloadLength];
+                        input.readFully(payload);
+                        output.write(serialize(key, updatedAt, payload));
+                        index.put(hash, compactedOffset, entrySize);
+                        compactedOffset += entrySize;
+                    }
+                    else {
+                        ByteStreams.skipFully(input, payloadLength);
+                    }
+                    offset += entrySize;
+                }
+            }
+            appender.close();
+            reader.close();
+            Files.move(compactedFile.toPath(), getLogFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            openLog();
+        }
+        finally {
+            logLock.writeLock().unlock();
+        }
+        logger.info("Compact include cache '{}' to '{}' entries", directory, index.size());
+    }
+
+    private File getLogFile()
+    {
+        return directory.resolve(LOG_FILE).toFile();
+    }
+
+    private static byte[] serialize(final String key, final String updatedAt, final byte[] payload)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(headerSize(key, updatedAt) + payload.length);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        writeString(output, key);
+        writeString(output, updatedAt);
+        output.writeInt(payload.length);
+        output.write(payload);
+        return bytes.toByteArray();
+    }
+
+    private static int headerSize(final String key, final String updatedAt)
+    {
+        return 4 + key.getBytes(StandardCharsets.UTF_8).length + 4 + updatedAt.getBytes(StandardCharsets.UTF_8).length + 4;
+    }
+
+    /**
+     * Keys are long paths, the index only keeps a hash of them.
+     */
+    private static long hash(final String key)
+    {
+        return Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static void writeString(final DataOutputStream output, final String value)
+        throws IOException
+    {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(final DataInputStream input, final long remainingBytes)
+        throws IOException
+    {
+        final byte[] bytes = new byte[readLength(input, remainingBytes)];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param remainingBytes bytes of the log left to read, length included
+     * @throws EOFException when the length runs past the end of the log, the entry is as good as truncated
+     */
+    private static int readLength(final DataInputStream input, final long remainingBytes)
+        throws IOException
+    {
+        final int length = input.readInt();
+        if (length < 0 || length > remainingBytes - 4) {
+            throw new EOFException("Invalid length '" + length + "' with '" + (remainingBytes - 4) + "' bytes left");
+        }
+        return length;
+    }
+}
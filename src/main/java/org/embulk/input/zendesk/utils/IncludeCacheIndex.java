@@ -0,0 +1,145 @@
+package org.embulk.input.zendesk.utils;
+
+import java.util.Arrays;
+
+/**
+ * Location of the live entries of the include cache log, by hash of their key, with open addressing in primitive arrays.
+ *
+ * The table is sized once for the maximum number of entries, a slot takes {@link #BYTES_PER_SLOT} bytes whether used or not.
+ * Entries are appended to the log, so the offset of an entry also tells how recently it was written.
+ */
+class IncludeCacheIndex
+{
+    static final int BYTES_PER_SLOT = Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    // 0 marks an empty slot, a key hashed to 0 is stored as 1 and told apart by the key written in the log
+    private final long[] hashes;
+    private final long[] offsets;
+    private final int[] sizes;
+    private final int mask;
+    private int size;
+
+    /**
+     * @param maxEntries entries the table holds under a load factor of 0.75, with room for one more
+     */
+    IncludeCacheIndex(final int maxEntries)
+    {
+        final int slots = Integer.highestOneBit(Math.max(2, (int) Math.min(1 << 30, (maxEntries + 1) * 4L / 3 + 1)) * 2 - 1);
+        hashes = new long[slots];
+        offsets = new long[slots];
+        sizes = new int[slots];
+        mask = slots - 1;
+    }
+
+    /**
+     * @return the slot of the entry, -1 when missing
+     */
+    int find(final long hash)
+    {
+        final long stored = stored(hash);
+        for (int i = (int) stored & mask; hashes[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == stored) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    long getOffset(final int slot)
+    {
+        return offsets[slot];
+    }
+
+    int getSize(final int slot)
+    {
+        return sizes[slot];
+    }
+
+    /**
+     * Add the entry, or move it when the hash is already there.
+     */
+    void put(final long hash, final long offset, final int entrySize)
+    {
+        final long stored = stored(hash);
+        int i = (int) stored & mask;
+        while (hashes[i] != 0 && hashes[i] != stored) {
+            i = (i + 1) & mask;
+        }
+        if (hashes[i] == 0) {
+            size++;
+        }
+        hashes[i] = stored;
+        offsets[i] = offset;
+        sizes[i] = entrySize;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return true once another entry would push the load factor past 0.75
+     */
+    boolean isFull()
+    {
+        return (size + 1) * 4L > hashes.length * 3L;
+    }
+
+    long getMemoryBytes()
+    {
+        return (long) hashes.length * BYTES_PER_SLOT;
+    }
+
+    /**
+     * @return the offset from which the newest entries are at most maxEntries
+     */
+    long getNewestOffset(final int maxEntries)
+    {
+        if (size <= maxEntries) {
+            return 0;
+        }
+        if (maxEntries <= 0) {
+            return Long.MAX_VALUE;
+        }
+        final long[] liveOffsets = new long[size];
+        int count = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != 0) {
+                liveOffsets[count++] = offsets[i];
+            }
+        }
+        Arrays.sort(liveOffsets);
+        return liveOffsets[size - maxEntries];
+    }
+
+    /**
+     * Drop the entries written before the offset.
+     */
+    void retainFrom(final long fromOffset)
+    {
+        final long[] keptHashes = new long[size];
+        final long[] keptOffsets = new long[size];
+        final int[] keptSizes = new int[size];
+        int kept = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != 0 && offsets[i] >= fromOffset) {
+                keptHashes[kept] = hashes[i];
+                keptOffsets[kept] = offsets[i];
+                keptSizes[kept] = sizes[i];
+                kept++;
+            }
+        }
+        // Reinserted rather than removed one by one, the probe sequences of the kept ones stay unbroken
+        Arrays.fill(hashes, 0);
+        size = 0;
+        for (int i = 0; i < kept; i++) {
+            put(keptHashes[i], keptOffsets[i], keptSizes[i]);
+        }
+    }
+
+    private static long stored(final long hash)
+    {
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,338 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import org.embulk.spi.DataException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keep only the latest version of each record, the one with the greatest time.
+ *
+ * Records are held serialized. Past the memory limit they are spilled to temporary files partitioned by id,
+ * and each partition is compacted by itself once every record is added. A partition larger than the memory limit
+ * is split first, into as many partitions as it takes for each of them to fit. Not thread safe.
+ */
+public class LatestRecordBuffer implements AutoCloseable
+{
+    private static final Logger logger = LoggerFactory.getLogger(LatestRecordBuffer.class);
+
+    private static final int SPILL_PARTITIONS = 32;
+    // A partition of the versions of a single record can't be split, nor one split past the open files limit
+    private static final int MAX_SPLIT_LEVELS = 3;
+    private static final int MAX_SPLIT_PARTITIONS = 256;
+    // Rough cost of a map entry, its key and its holder
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final long memoryLimitBytes;
+    private Map<String, Version> versions = new HashMap<>();
+    private long memoryBytes;
+    private long addedRecords;
+    private int readPartitions;
+
+    private File spillDirectory;
+    private DataOutputStream[] spillPartitions;
+
+    public LatestRecordBuffer(final long memoryLimitBytes)
+    {
+        this.memoryLimitBytes = memoryLimitBytes;
+    }
+
+    public void add(final String id, final long time, final JsonNode record)
+    {
+        addedRecords++;
+        final Version previous = versions.get(id);
+        // On the same time, the record returned later is the latest
+        if (previous != null && previous.time > time) {
+            return;
+        }
+
+        final byte[] json;
+        try {
+            json = mapper.writeValueAsBytes(record);
+        }
+        catch (final IOException e) {
+            throw new DataException(e);
+        }
+        versions.put(id, new Version(time, json));
+        memoryBytes += json.length + (previous == null ? id.length() * 2L + ENTRY_OVERHEAD_BYTES : -previous.json.length);
+
+        if (memoryBytes > memoryLimitBytes) {
+            spill();
+        }
+    }
+
+    /**
+     * Hand the latest version of every record to the consumer.
+     */
+    public void forEachLatest(final Consumer<JsonNode> consumer)
+    {
+        long latestRecords = 0;
+        if (spillPartitions == null) {
+            for (final Version version : versions.values()) {
+                consumer.accept(version.toJsonNode(mapper));
+            }
+            latestRecords = versions.size();
+        }
+        else {
+            spill();
+            closeSpillPartitions();
+            for (int partition = 0; partition < SPILL_PARTITIONS; partition++) {
+                latestRecords += forEachLatest(getSpillFile("partition-" + partition), 0, consumer);
+            }
+        }
+        versions = new HashMap<>();
+        memoryBytes = 0;
+        logger.info("Keep the latest version of '{}' records out of '{}'", latestRecords, addedRecords);
+    }
+
+    /**
+     * @return the spill partitions read back so far, split ones excluded
+     */
+    @VisibleForTesting
+    int getReadPartitions()
+    {
+        return readPartitions;
+    }
+
+    @Override
+    public void close()
+    {
+        closeSpillPartitions();
+        if (spillDirectory != null) {
+            final File[] files = spillDirectory.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    if (!file.delete()) {
+                        logger.warn("Fail to delete '{}'", file);
+                    }
+                }
+            }
+            if (!spillDirectory.delete()) {
+                logger.warn("Fail to delete '{}'", spillDirectory);
+            }
+            spillDirectory = null;
+        }
+    }
+
+    private void spill()
+    {
+        try {
+            if (spillPartitions == null) {
+                spillDirectory = Files.createTempDirectory("embulk-input-zendesk-latest").toFile();
+                spillPartitions = new DataOutputStream[SPILL_PARTITIONS];
+                for (int partition = 0; partition < SPILL_PARTITIONS; partition++) {
+                    spillPartitions[partition] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getSpillFile("partition-" + partition))));
+                }
+                logger.info("Spill the records to '{}' past '{}' bytes", spillDirectory, memoryLimitBytes);
+            }
+            for (final Map.Entry<String, Version> entry : versions.entrySet()) {
+                writeVersion(spillPartitions[Math.floorMod(entry.getKey().hashCode(), SPILL_PARTITIONS)], entry.getKey(), entry.getValue());
+            }
+        }
+        catch (final IOException e) {
+            throw new DataException("Fail to spill records to disk", e);
+        }
+        versions = new HashMap<>();
+        memoryBytes = 0;
+    }
+
+    /**
+     * @return the number of latest versions in the partition
+     */
+    private long forEachLatest(final File partitionFile, final int level, final Consumer<JsonNode> consumer)
+    {
+        if (partitionFile.length() > memoryLimitBytes && level < MAX_SPLIT_LEVELS) {
+            long latestRecords = 0;
+            for (final File splitFile : splitSpillPartition(partitionFile, level)) {
+                latestRecords += forEachLatest(splitFile, level + 1, consumer);
+            }
+            return latestRecords;
+        }
+
+        final Map<String, Version> partitionVersions = readSpillPartition(partitionFile);
+        for (final Version version : partitionVersions.values()) {
+            consumer.accept(version.toJsonNode(mapper));
+        }
+        readPartitions++;
+        return partitionVersions.size();
+    }
+
+    /**
+     * Split the partition into as many as it takes for each of them to fit in the memory limit, keeping the order of the versions.
+     */
+    private File[] splitSpillPartition(final File partitionFile, final int level)
+    {
+        final long partitionBytes = partitionFile.length();
+        final int partitions = (int) Math.max(2, Math.min(MAX_SPLIT_PARTITIONS, (partitionBytes + memoryLimitBytes - 1) / memoryLimitBytes));
+        final File[] splitFiles = new File[partitions];
+        final DataOutputStream[] outputs = new DataOutputStream[partitions];
+        try {
+            try {
+                for (int partition = 0; partition < partitions; partition++) {
+                    splitFiles[partition] = getSpillFile(partitionFile.getName() + "-" + partition);
+                    outputs[partition] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(splitFiles[partition])));
+                }
+                // Ids of a partition share their hashCode modulo, split them by another hash
+                readVersions(partitionFile, (id, version) -> {
+                    final int hash = Hashing.murmur3_32(level).hashString(id, StandardCharsets.UTF_8).asInt();
+                    writeVersion(outputs[Math.floorMod(hash, partitions)], id, version);
+                });
+            }
+            finally {
+                closeAll(outputs);
+            }
+        }
+        catch (final IOException e) {
+            throw new DataException("Fail to spill records to disk", e);
+        }
+        if (!partitionFile.delete()) {
+            logger.warn("Fail to delete '{}'", partitionFile);
+        }
+        logger.info("Split spilled records of '{}' bytes into '{}' partitions", partitionBytes, partitions);
+        return splitFiles;
+    }
+
+    private Map<String, Version> readSpillPartition(final File partitionFile)
+    {
+        final Map<String, Version> partitionVersions = new HashMap<>();
+        try {
+            readVersions(partitionFile, (id, version) -> {
+                // Partitions are written in the order the records came, same rule as add
+                final Version previous = partitionVersions.get(id);
+                if (previous == null || previous.time <= version.time) {
+                    partitionVersions.put(id, version);
+                }
+            });
+        }
+        catch (final IOException e) {
+            throw new DataException("Fail to read spilled records", e);
+        }
+        return partitionVersions;
+    }
+
+    private static void readVersions(final File partitionFile, final VersionConsumer consumer)
+        throws IOException
+    {
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(partitionFile)))) {
+            while (true) {
+                final String id;
+                try {
+                    id = input.readUTF();
+                }
+                catch (final EOFException e) {
+                    break;
+                }
+                final long time = input.readLong();
+                final byte[] json = new byte[input.readInt()];
+                input.readFully(json);
+                consumer.accept(id, new Version(time, json));
+            }
+        }
+    }
+
+    private static void writeVersion(final DataOutputStream output, final String id, final Version version)
+        throws IOException
+    {
+        output.writeUTF(id);
+        output.writeLong(version.time);
+        output.writeInt(version.json.length);
+        output.write(version.json);
+    }
+
+    private File getSpillFile(final String name)
+    {
+        return new File(spillDirectory, name);
+    }
+
+    private void closeSpillPartitions()
+    {
+        if (spillPartitions == null) {
+            return;
+        }
+        try {
+            closeAll(spillPartitions);
+        }
+        catch (final IOException e) {
+            throw new DataException("Fail to spill records to disk", e);
+        }
+        finally {
+            spillPartitions = null;
+        }
+    }
+
+    /**
+     * Close every output even when some fail, a failure to close one leaves the others open otherwise.
+     */
+    @VisibleForTesting
+    static void closeAll(final DataOutputStream[] outputs)
+        throws IOException
+    {
+        IOException failure = null;
+        for (final DataOutputStream output : outputs) {
+            if (output == null) {
+                continue;
+            }
+            try {
+                output.close();
+            }
+            catch (final IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private interface VersionConsumer
+    {
+        void accept(String id, Version version)
+            throws IOException;
+    }
+
+    private static class Version
+    {
+        private final long time;
+        private final byte[] json;
+
+        Version(final long time, final byte[] json)
+        {
+            this.time = time;
+            this.json = json;
+        }
+
+        JsonNode toJsonNode(final ObjectMapper mapper)
+        {
+            try {
+                return mapper.readTree(json);
+            }
+            catch (final IOException e) {
+                throw new DataException(e);
+            }
+        }
+    }
+}
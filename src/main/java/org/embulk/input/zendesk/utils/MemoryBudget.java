@@ -0,0 +1,91 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.embulk.spi.DataException;
+
+import java.util.Iterator;
+
+/**
+ * Bound the estimated bytes of the records held at once, callers wait until enough bytes are released.
+ */
+public class MemoryBudget
+{
+    // Rough heap cost of a JsonNode besides its text, and of each char of a text
+    private static final long NODE_BYTES = 48;
+    private static final long CHAR_BYTES = 2;
+
+    private final long limitBytes;
+    private long usedBytes;
+    private long waitMillis;
+
+    public MemoryBudget(final long limitBytes)
+    {
+        this.limitBytes = limitBytes;
+    }
+
+    /**
+     * Wait until the bytes fit in the budget. A record larger than the whole budget is let through once nothing else is held.
+     */
+    public synchronized void acquire(final long bytes)
+    {
+        final long startMillis = System.currentTimeMillis();
+        try {
+            while (usedBytes > 0 && usedBytes + bytes > limitBytes) {
+                wait();
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataException(e);
+        }
+        usedBytes += bytes;
+        waitMillis += System.currentTimeMillis() - startMillis;
+    }
+
+    /**
+     * Take the bytes without waiting, even past the limit.
+     */
+    public synchronized void forceAcquire(final long bytes)
+    {
+        usedBytes += bytes;
+    }
+
+    public synchronized void release(final long bytes)
+    {
+        usedBytes -= bytes;
+        notifyAll();
+    }
+
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    /**
+     * @return the milliseconds spent waiting for the budget so far
+     */
+    public synchronized long getWaitMillis()
+    {
+        return waitMillis;
+    }
+
+    public static long estimateBytes(final JsonNode jsonNode)
+    {
+        long bytes = NODE_BYTES;
+        if (jsonNode.isContainerNode()) {
+            if (jsonNode.isObject()) {
+                final Iterator<String> fieldNames = jsonNode.fieldNames();
+                while (fieldNames.hasNext()) {
+                    bytes += NODE_BYTES + fieldNames.next().length() * CHAR_BYTES;
+                }
+            }
+            for (final JsonNode child : jsonNode) {
+                bytes += estimateBytes(child);
+            }
+        }
+        else if (jsonNode.isTextual()) {
+            bytes += jsonNode.textValue().length() * CHAR_BYTES;
+        }
+        return bytes;
+    }
+}
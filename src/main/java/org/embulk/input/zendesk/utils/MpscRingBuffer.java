@@ -0,0 +1,96 @@
+package org.embulk.input.zendesk.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer at a time.
+ *
+ * Every slot carries a sequence number telling whether it's free for the producer of a position or published
+ * for the consumer, so producers only compete on claiming a position.
+ */
+public class MpscRingBuffer<T>
+{
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only moved by the consumer
+    private volatile long head;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public MpscRingBuffer(final int capacity)
+    {
+        final int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false when the buffer is full
+     */
+    public boolean offer(final T item)
+    {
+        while (true) {
+            final long position = tail.get();
+            final int index = (int) (position & mask);
+            final long difference = sequences.get(index) - position;
+            if (difference < 0) {
+                return false;
+            }
+            if (difference == 0 && tail.compareAndSet(position, position + 1)) {
+                slots.set(index, item);
+                sequences.set(index, position + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * To be called by one thread at a time.
+     *
+     * @return the oldest published item, null when there is none
+     */
+    public T poll()
+    {
+        final long position = head;
+        final int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        final T item = slots.get(index);
+        slots.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+        head = position + 1;
+        return item;
+    }
+
+    /**
+     * @return whether the oldest claimed position has been published
+     */
+    public boolean hasPublished()
+    {
+        final long position = head;
+        return sequences.get((int) (position & mask)) == position + 1;
+    }
+
+    /**
+     * @return the number of claimed positions not polled yet, including the ones being published
+     */
+    public int size()
+    {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity()
+    {
+        return mask + 1;
+    }
+}
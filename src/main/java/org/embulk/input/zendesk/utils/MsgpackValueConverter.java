@@ -0,0 +1,58 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Build the msgpack value of a json column straight from the Jackson tree, instead of writing the tree to a string
+ * and parsing it again. Values are the same as the ones of the Embulk json parser.
+ */
+public class MsgpackValueConverter
+{
+    private MsgpackValueConverter()
+    {
+    }
+
+    public static Value convert(final JsonNode node)
+    {
+        switch (node.getNodeType()) {
+        case OBJECT:
+            final Value[] keyValues = new Value[node.size() * 2];
+            final Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            for (int i = 0; fields.hasNext(); i += 2) {
+                final Map.Entry<String, JsonNode> field = fields.next();
+                keyValues[i] = ValueFactory.newString(field.getKey());
+                keyValues[i + 1] = convert(field.getValue());
+            }
+            return ValueFactory.newMap(keyValues, true);
+        case ARRAY:
+            final Value[] elements = new Value[node.size()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = convert(node.get(i));
+            }
+            return ValueFactory.newArray(elements, true);
+        case STRING:
+            return ValueFactory.newString(node.textValue());
+        case NUMBER:
+            if (node.isBigInteger()) {
+                return ValueFactory.newInteger(node.bigIntegerValue());
+            }
+            if (node.isIntegralNumber()) {
+                return ValueFactory.newInteger(node.longValue());
+            }
+            return ValueFactory.newFloat(node.doubleValue());
+        case BOOLEAN:
+            return ValueFactory.newBoolean(node.booleanValue());
+        case NULL:
+        case MISSING:
+            return ValueFactory.newNil();
+        default:
+            // Binary and POJO nodes are never built from a response, keep their json form
+            return ValueFactory.newString(node.asText());
+        }
+    }
+}
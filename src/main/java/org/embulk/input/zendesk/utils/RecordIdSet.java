@@ -0,0 +1,26 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ids of the records already imported. Numeric ids are kept as primitive longs, the others e.g. user events ids as strings.
+ */
+public class RecordIdSet
+{
+    private final ConcurrentLongSet numericIds = new ConcurrentLongSet();
+    private final Set<String> otherIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @return true if the id wasn't known yet
+     */
+    public boolean add(final JsonNode id)
+    {
+        if (id.isIntegralNumber() && id.canConvertToLong()) {
+            return numericIds.add(id.longValue());
+        }
+        return otherIds.add(id.asText());
+    }
+}
@@ -14,6 +14,7 @@ public class ZendeskConstants
     public static class Header
     {
         public static final String APPLICATION_JSON = "application/json";
+        public static final String GZIP_DEFLATE = "gzip, deflate";
 
         public static final String ZENDESK_MARKETPLACE_NAME = "X-Zendesk-Marketplace-Name";
         public static final String ZENDESK_MARKETPLACE_ORGANIZATION_ID = "X-Zendesk-Marketplace-Organization-Id";
@@ -30,6 +31,12 @@ public class ZendeskConstants
         public static final String ID = "id";
         public static final String END_OF_STREAM = "end_of_stream";
         public static final String AFTER_URL = "after_url";
+        public static final String NEXT_PAGE = "next_page";
+        public static final String META = "meta";
+        public static final String HAS_MORE = "has_more";
+        public static final String LINKS = "links";
+        public static final String NEXT = "next";
+        public static final String PAGE = "page";
     }
 
     public static class Url
@@ -57,6 +64,9 @@ public class ZendeskConstants
         public static final String TOO_RECENT_START_TIME = "Too recent start_time.";
         public static final int RECORDS_SIZE_PER_PAGE = 100;
         public static final int MAXIMUM_RECORDS_INCREMENTAL = 1000;
+        public static final int MAXIMUM_CONCURRENT_REQUESTS = 100;
+        // Converted records waiting to be written to the page builder
+        public static final int RECORD_BUFFER_SIZE = 1024;
 
         // 1 MB
         public static final int GUESS_BUFFER_SIZE = 1024 * 1024;
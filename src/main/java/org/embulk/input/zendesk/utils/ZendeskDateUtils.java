@@ -10,10 +10,23 @@ import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 
 import java.time.format.ResolverStyle;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 public class ZendeskDateUtils
 {
+    // Formatters are immutable, compile them once instead of for every parsed value
+    private static final Map<String, DateTimeFormatter> FORMATTERS = new HashMap<>();
+    private static final Map<String, DateTimeFormatter> STRICT_FORMATTERS = new HashMap<>();
+
+    static {
+        for (final String fmt : ZendeskConstants.Misc.SUPPORT_DATE_TIME_FORMAT) {
+            FORMATTERS.put(fmt, DateTimeFormatter.ofPattern(fmt));
+            STRICT_FORMATTERS.put(fmt, DateTimeFormatter.ofPattern(fmt).withZone(ZoneOffset.UTC).withResolverStyle(ResolverStyle.STRICT));
+        }
+    }
+
     private ZendeskDateUtils()
     {
     }
@@ -22,7 +35,7 @@ public class ZendeskDateUtils
     {
         final Optional<String> pattern = supportedTimeFormat(time);
         if (pattern.isPresent()) {
-            final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(pattern.get()).withZone(ZoneOffset.UTC).withResolverStyle(ResolverStyle.STRICT);
+            final DateTimeFormatter formatter = STRICT_FORMATTERS.get(pattern.get());
             try {
                 final OffsetDateTime offsetDateTime = LocalDateTime.parse(time, formatter).atOffset(ZoneOffset.UTC);
                 return offsetDateTime.toInstant().getEpochSecond();
@@ -38,7 +51,7 @@ public class ZendeskDateUtils
     public static Optional<String> supportedTimeFormat(final String value)
     {
         for (final String fmt : ZendeskConstants.Misc.SUPPORT_DATE_TIME_FORMAT) {
-            final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(fmt);
+            final DateTimeFormatter formatter = FORMATTERS.get(fmt);
             try {
                 formatter.parse(value);
                 return Optional.of(fmt);
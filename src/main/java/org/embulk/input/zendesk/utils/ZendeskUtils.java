@@ -1,5 +1,7 @@
 package org.embulk.input.zendesk.utils;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -11,10 +13,12 @@ import org.embulk.config.ConfigException;
 import org.embulk.spi.DataException;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Base64;
 import java.util.Iterator;
+import java.util.function.Consumer;
 
 public class ZendeskUtils
 {
@@ -22,7 +26,7 @@ public class ZendeskUtils
 
     static {
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        mapper.configure(com.fasterxml.jackson.core.JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS, false);
+        mapper.configure(JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS, false);
     }
 
     private ZendeskUtils()
@@ -38,6 +42,28 @@ public class ZendeskUtils
         return (int) Math.ceil((double) count / ZendeskConstants.Misc.RECORDS_SIZE_PER_PAGE);
     }
 
+    /**
+     * @return the number of shards the inclusive time range is split into, never more than its number of seconds
+     */
+    public static int numberOfShards(final long startTime, final long endTime, final int incrementalShards)
+    {
+        return (int) Math.max(1, Math.min(incrementalShards, endTime - startTime + 1));
+    }
+
+    /**
+     * Split the inclusive time range into consecutive windows that don't overlap.
+     *
+     * @return the inclusive start and end time of the window of the shard
+     */
+    public static long[] getShardWindow(final long startTime, final long endTime, final int numberOfShards, final int shardIndex)
+    {
+        final long range = endTime - startTime + 1;
+        return new long[] {
+            startTime + range * shardIndex / numberOfShards,
+            startTime + range * (shardIndex + 1) / numberOfShards - 1
+        };
+    }
+
     public static ObjectNode parseJsonObject(final String jsonText)
     {
         final JsonNode node = ZendeskUtils.parseJsonNode(jsonText);
@@ -56,6 +82,51 @@ public class ZendeskUtils
         return result.get(targetJsonName).elements();
     }
 
+    /**
+     * Read a page object from the stream and hand each element of the target array to the consumer as soon as it is parsed,
+     * so the whole page never has to be held in memory.
+     * The first skippedRecords elements are skipped without being materialized, this lets a retried download resume.
+     *
+     * @return the other top-level fields of the page e.g. end_time, count, next_page, after_url, end_of_stream
+     */
+    public static ObjectNode streamListRecords(final InputStream inputStream, final String targetJsonName, final int skippedRecords, final Consumer<JsonNode> consumer)
+        throws IOException
+    {
+        final ObjectNode fields = mapper.createObjectNode();
+        boolean hasRecords = false;
+
+        try (final JsonParser parser = mapper.getFactory().createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new DataException("Expected object node to parse but doesn't get");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+
+                if (fieldName.equals(targetJsonName) && token == JsonToken.START_ARRAY) {
+                    hasRecords = true;
+                    int index = 0;
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        if (index++ < skippedRecords) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        consumer.accept(mapper.readTree(parser));
+                    }
+                }
+                else {
+                    fields.set(fieldName, mapper.readTree(parser));
+                }
+            }
+        }
+
+        if (!hasRecords) {
+            throw new DataException(String.format("Missing '%s' from Zendesk API response", targetJsonName));
+        }
+        return fields;
+    }
+
     public static boolean isNull(final JsonNode jsonNode)
     {
         return jsonNode == null || jsonNode.isNull();
@@ -2,8 +2,10 @@ package org.embulk.input.zendesk;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.TaskReport;
 import org.embulk.input.zendesk.utils.ZendeskTestHelper;
 import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.Schema;
 import org.embulk.util.json.JsonParser;
@@ -17,8 +19,18 @@ import org.msgpack.value.Value;
 
 import java.time.Instant;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER;
+import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -113,4 +125,75 @@ public class TestRecordImporter
 
         verify(pageBuilder, times(6)).setNull(Mockito.any());
     }
+
+    @Test
+    public void testAddRecordsFromSeveralThreads() throws Exception
+    {
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/util.json").get("allRight");
+        int threads = 8;
+        int recordsPerThread = 2000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(pool.submit(() -> {
+                for (int r = 0; r < recordsPerThread; r++) {
+                    recordImporter.addRecord(dataJson);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        recordImporter.finish();
+
+        verify(pageBuilder, times(threads * recordsPerThread)).addRecord();
+        verify(pageBuilder, times(threads * recordsPerThread)).setString(stringColumn, "string");
+
+        TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        recordImporter.addStatsToTaskReport(taskReport);
+        TaskReport importReport = taskReport.getNested("record_import");
+        assertEquals(threads * recordsPerThread, importReport.get(Long.class, "records").longValue());
+        assertTrue(importReport.get(Long.class, "handed_off_records") <= threads * recordsPerThread);
+        assertTrue(importReport.get(Integer.class, "max_queue_depth") >= 1);
+    }
+
+    @Test
+    public void testThrowWriteFailureFromFinish() throws Exception
+    {
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/util.json").get("allRight");
+        doThrow(new DataException("page full")).when(pageBuilder).addRecord();
+
+        // Written by another thread, the failure is still thrown to the thread finishing the import
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            pool.submit(() -> {
+                try {
+                    recordImporter.addRecord(dataJson);
+                }
+                catch (DataException e) {
+                    // Also thrown to the thread adding the record
+                }
+            }).get();
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        try {
+            recordImporter.finish();
+            fail("The write failure should be thrown");
+        }
+        catch (DataException e) {
+            assertEquals("page full", e.getMessage());
+        }
+        try {
+            recordImporter.addRecord(dataJson);
+            fail("The write failure should be thrown");
+        }
+        catch (DataException e) {
+            assertEquals("page full", e.getMessage());
+        }
+        verify(pageBuilder, times(1)).addRecord();
+    }
 }
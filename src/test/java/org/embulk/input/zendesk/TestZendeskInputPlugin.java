@@ -143,11 +143,22 @@ public class TestZendeskInputPlugin
     {
         final ConfigSource src = ZendeskTestHelper.getConfigSource("non-incremental.yml");
         loadData("data/ticket_fields.json");
+        final List<TaskReport> taskReports = new ArrayList<>();
+        when(zendeskSupportAPIService.addRecordToImporter(anyInt(), any())).thenAnswer(invocation -> {
+            TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+            taskReports.add(taskReport);
+            return taskReport;
+        });
 
         ConfigDiff configDiff = zendeskInputPlugin.transaction(src, new Control());
         // running in 2 pages
         verify(pageBuilder, times(2)).finish();
         Assert.assertTrue(configDiff.isEmpty());
+        // The import stats of each task are reported along with the ones of the service
+        assertEquals(2, taskReports.size());
+        for (TaskReport taskReport : taskReports) {
+            assertEquals(0L, taskReport.getNested("record_import").get(Long.class, "records").longValue());
+        }
     }
 
     @Test
@@ -170,6 +181,27 @@ public class TestZendeskInputPlugin
         assertEquals("2019-06-12 03:22:56 +0000", nextEndTime);
     }
 
+    @Test
+    public void testRunIncrementalShardsStoreLatestStartTime()
+    {
+        final ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml")
+                .set("end_time", "2019-04-12 06:51:50 +0000")
+                .set("incremental_shards", 3);
+
+        when(zendeskSupportAPIService.isSupportIncremental()).thenReturn(true);
+        when(zendeskSupportAPIService.addRecordToImporter(anyInt(), any())).thenAnswer(invocation -> {
+            // shards finishing in any order, the last one reports the end of the range
+            final int taskIndex = invocation.getArgument(0);
+            TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+            taskReport.set(ZendeskConstants.Field.START_TIME, 1555051911L - (2 - taskIndex) * 1000);
+            return taskReport;
+        });
+
+        ConfigDiff configDiff = zendeskInputPlugin.transaction(src, new Control());
+        verify(pageBuilder, times(3)).finish();
+        assertEquals("2019-04-12 06:51:51 +0000", configDiff.get(String.class, ZendeskConstants.Field.START_TIME));
+    }
+
     @Test
     public void testRunIncrementalStoreStartTimeAndEndTimeForChat()
     {
@@ -346,6 +378,15 @@ public class TestZendeskInputPlugin
         assertValidation(configSource, "End Time should be later or equal than Start Time");
     }
 
+    @Test
+    public void validateIncrementalShardsShouldRequireStartTime()
+    {
+        ConfigSource configSource = ZendeskTestHelper.getConfigSource("base_validator.yml");
+        when(zendeskSupportAPIService.isSupportIncremental()).thenReturn(true);
+        configSource.set("incremental_shards", 3);
+        assertValidation(configSource, "Start Time is required to split the incremental export into incremental_shards");
+    }
+
     @Test
     public void isValidTimeRangeShouldThrowException()
     {
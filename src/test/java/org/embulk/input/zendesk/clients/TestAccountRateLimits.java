@@ -0,0 +1,86 @@
+package org.embulk.input.zendesk.clients;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.input.zendesk.ZendeskInputPlugin.PluginTask;
+import org.embulk.input.zendesk.utils.ZendeskTestHelper;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestAccountRateLimits
+{
+    @Rule
+    public EmbulkTestRuntime embulkTestRuntime = new EmbulkTestRuntime();
+
+    @Test
+    public void sameAccountSharesRateLimits()
+    {
+        PluginTask task = buildTask("https://abc.zendesk.com/", "user@example.com");
+        PluginTask sameAccount = buildTask("https://ABC.zendesk.com", "user@example.com");
+
+        assertEquals(AccountRateLimits.buildKey(task), AccountRateLimits.buildKey(sameAccount));
+        assertSame(AccountRateLimits.of(task), AccountRateLimits.of(sameAccount));
+    }
+
+    @Test
+    public void differentAccountsHaveTheirOwnRateLimits()
+    {
+        PluginTask task = buildTask("https://abc.zendesk.com/", "user@example.com");
+        PluginTask otherUrl = buildTask("https://xyz.zendesk.com/", "user@example.com");
+        PluginTask otherUser = buildTask("https://abc.zendesk.com/", "other@example.com");
+
+        assertNotSame(AccountRateLimits.of(task), AccountRateLimits.of(otherUrl));
+        assertNotSame(AccountRateLimits.of(task), AccountRateLimits.of(otherUser));
+    }
+
+    @Test
+    public void keyDoesNotContainAccessToken()
+    {
+        ConfigSource configSource = ZendeskTestHelper.getConfigSource("incremental.yml");
+        configSource.set("auth_method", "oauth");
+        configSource.set("access_token", "secret_token");
+        PluginTask task = CONFIG_MAPPER.map(configSource, PluginTask.class);
+
+        assertFalse(AccountRateLimits.buildKey(task).contains("secret_token"));
+    }
+
+    @Test
+    public void tryAcquireHandsBackPermitsWhenAnotherLimiterIsExhausted()
+    {
+        AccountRateLimits rateLimits = AccountRateLimits.of(buildTask("https://exhausted.zendesk.com/", "user@example.com"));
+        AdaptiveRateLimiter generic = rateLimits.getRateLimiter(EndpointType.GENERIC);
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("x-rate-limit", "700");
+        response.addHeader("x-rate-limit-remaining", "0");
+        generic.update(response);
+        // The last permit of the account wide budget
+        assertEquals(0, generic.tryAcquire());
+
+        assertTrue(rateLimits.tryAcquire(Arrays.asList(EndpointType.INCREMENTAL, EndpointType.GENERIC)) > 0);
+        // The incremental permit wasn't spent, a request can still take it
+        AdaptiveRateLimiter incremental = rateLimits.getRateLimiter(EndpointType.INCREMENTAL);
+        assertEquals(0, incremental.tryAcquire());
+        assertTrue(incremental.tryAcquire() > 0);
+    }
+
+    private PluginTask buildTask(String loginUrl, String username)
+    {
+        ConfigSource configSource = ZendeskTestHelper.getConfigSource("incremental.yml");
+        configSource.set("login_url", loginUrl);
+        configSource.set("auth_method", "token");
+        configSource.set("username", username);
+        return CONFIG_MAPPER.map(configSource, PluginTask.class);
+    }
+}
@@ -0,0 +1,107 @@
+package org.embulk.input.zendesk.clients;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.embulk.spi.DataException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class TestAdaptiveRateLimiter
+{
+    private static final double DELTA = 0.0001;
+
+    @Test
+    public void initRateFromLimitWithSafetyMargin()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10);
+        assertFalse(limiter.update(response("600", null)));
+        assertEquals(9, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void slowDownWhenBudgetIsLow()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10);
+        limiter.update(response("600", "600"));
+
+        // 120 left for 60 seconds, 60 of them are kept for the others
+        assertTrue(limiter.update(response("600", "120")));
+        assertEquals(1, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void speedUpSmoothlyWhenBudgetIsBack()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10);
+        limiter.update(response("600", "600"));
+        limiter.update(response("600", "0"));
+        double throttledRate = limiter.getRate();
+
+        assertFalse(limiter.update(response("600", "600")));
+        double rate = limiter.getRate();
+        assertTrue(rate > throttledRate);
+        assertTrue(rate < 9);
+    }
+
+    @Test
+    public void useResetWindowOfStandardHeaders()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0);
+        limiter.update(response("600", null));
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("ratelimit-remaining", "20");
+        response.addHeader("ratelimit-reset", "10");
+        assertTrue(limiter.update(response));
+        assertEquals(2, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void endpointLimitUsesItsOwnHeader()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0, "zendesk-ratelimit-incremental-exports", 10);
+        assertEquals(10.0 / 60, limiter.getRate(), DELTA);
+
+        // Account wide headers don't apply to the endpoint limit
+        assertFalse(limiter.update(response("700", "700")));
+        assertEquals(10.0 / 60, limiter.getRate(), DELTA);
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("zendesk-ratelimit-incremental-exports", "total=30; remaining=1; resets=10");
+        assertTrue(limiter.update(response));
+        assertEquals(0.1, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void ignoreResponseWithoutLimit()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10);
+        assertFalse(limiter.update(response(null, null)));
+        assertEquals(0, limiter.getRate(), DELTA);
+        assertEquals(0, limiter.acquire(), DELTA);
+    }
+
+    @Test
+    public void throwWhenLimitIsInvalid()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10);
+        assertThrows(DataException.class, () -> limiter.update(response("abc", null)));
+    }
+
+    private HttpResponse response(String limit, String remaining)
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        if (limit != null) {
+            response.addHeader("x-rate-limit", limit);
+        }
+        if (remaining != null) {
+            response.addHeader("x-rate-limit-remaining", remaining);
+        }
+        return response;
+    }
+}
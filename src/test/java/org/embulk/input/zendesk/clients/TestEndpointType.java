@@ -0,0 +1,36 @@
+package org.embulk.input.zendesk.clients;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEndpointType
+{
+    @Test
+    public void classifyUrls()
+    {
+        assertEquals(EndpointType.INCREMENTAL, EndpointType.of("https://abc.zendesk.com/api/v2/incremental/tickets.json?start_time=0"));
+        assertEquals(EndpointType.INCREMENTAL, EndpointType.of("https://abc.zendesk.com/api/v2/incremental/tickets/cursor.json?start_time=0"));
+        assertEquals(EndpointType.INCREMENTAL, EndpointType.of("https://abc.zendesk.com/api/v2/nps/incremental/responses.json"));
+        assertEquals(EndpointType.CHAT, EndpointType.of("https://abc.zendesk.com/api/v2/chat/chats/search?q=timestamp"));
+        assertEquals(EndpointType.CHAT, EndpointType.of("https://www.zopim.com/api/v2/chats?ids=1,2"));
+        assertEquals(EndpointType.CHAT, EndpointType.of("https://www.zopim.com/api/v2/chats/search?q=timestamp"));
+        assertEquals(EndpointType.GENERIC, EndpointType.of("https://abc.zendesk.com/api/v2/chatters.json"));
+        assertEquals(EndpointType.SEARCH, EndpointType.of("https://abc.zendesk.com/api/v2/search.json?query=type:ticket"));
+        assertEquals(EndpointType.SUNSHINE, EndpointType.of("https://abc.zendesk.com/api/sunshine/objects/records?type=account"));
+        assertEquals(EndpointType.SUNSHINE, EndpointType.of("https://abc.zendesk.com/api/v2/users/1/events?filter[source]=a"));
+        assertEquals(EndpointType.GENERIC, EndpointType.of("https://abc.zendesk.com/api/v2/tickets/1/comments.json"));
+        assertEquals(EndpointType.GENERIC, EndpointType.of("any"));
+    }
+
+    @Test
+    public void incrementalAndSearchCountInAccountLimit()
+    {
+        assertTrue(EndpointType.INCREMENTAL.isCountedInGeneric());
+        assertTrue(EndpointType.SEARCH.isCountedInGeneric());
+        assertFalse(EndpointType.CHAT.isCountedInGeneric());
+        assertFalse(EndpointType.SUNSHINE.isCountedInGeneric());
+    }
+}
@@ -0,0 +1,65 @@
+package org.embulk.input.zendesk.clients;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestInFlightRequests
+{
+    @Test
+    public void queueRequestsPastTheBoundWithoutBlocking()
+    {
+        InFlightRequests inFlightRequests = new InFlightRequests(2);
+        List<Integer> started = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final int request = i;
+            inFlightRequests.start(() -> started.add(request));
+        }
+        assertEquals(2, started.size());
+        assertEquals(2, inFlightRequests.getRequests());
+        assertEquals(3, inFlightRequests.getQueued());
+
+        // A finished request hands its place over to the oldest queued one
+        inFlightRequests.finish();
+        assertEquals(3, started.size());
+        assertEquals(2, started.get(2).intValue());
+        assertEquals(2, inFlightRequests.getRequests());
+
+        for (int i = 0; i < 4; i++) {
+            inFlightRequests.finish();
+        }
+        assertEquals(5, started.size());
+        assertEquals(0, inFlightRequests.getRequests());
+        assertEquals(0, inFlightRequests.getQueued());
+    }
+
+    @Test
+    public void startRequestsFromTheThreadFinishingAnother()
+    {
+        InFlightRequests inFlightRequests = new InFlightRequests(1);
+        List<String> started = new ArrayList<>();
+        inFlightRequests.start(() -> started.add("first"));
+        // e.g. the next page of an include asked for by the callback of the previous one
+        inFlightRequests.start(() -> {
+            started.add("second");
+            inFlightRequests.start(() -> started.add("third"));
+        });
+        inFlightRequests.finish();
+        assertEquals(2, started.size());
+        inFlightRequests.finish();
+        assertEquals(3, started.size());
+        inFlightRequests.finish();
+        assertEquals(0, inFlightRequests.getRequests());
+    }
+
+    @Test
+    public void runBlockingRequestsOnThreadsBoundedByTheBudget()
+    {
+        InFlightRequests inFlightRequests = new InFlightRequests(3);
+        assertEquals(3, ((ThreadPoolExecutor) inFlightRequests.getExecutor()).getMaximumPoolSize());
+    }
+}
@@ -0,0 +1,75 @@
+package org.embulk.input.zendesk.clients;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestThrottleGate
+{
+    @Test
+    public void openGateDoesNotWait()
+    {
+        ThrottleGate gate = new ThrottleGate();
+        assertEquals(0, gate.await());
+    }
+
+    @Test
+    public void closedGateBlocksEveryThread() throws Exception
+    {
+        ThrottleGate gate = new ThrottleGate();
+        assertTrue(gate.closeFor(300));
+        assertFalse(gate.closeFor(100));
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            long start = System.currentTimeMillis();
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(executor.submit(gate::await));
+            }
+            for (Future<Long> future : futures) {
+                assertTrue(future.get() > 0);
+            }
+            assertTrue(System.currentTimeMillis() - start >= 300);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void rampUpSpacesRequestsAfterReopen()
+    {
+        ThrottleGate gate = new ThrottleGate();
+        gate.closeFor(2000, 0);
+
+        // Reopened at 2000 with a 2000 ms ramp-up, slots start 100 ms apart
+        assertEquals(0, gate.reserveSlot(2000));
+        assertEquals(100, gate.reserveSlot(2000));
+        assertEquals(200, gate.reserveSlot(2000));
+        // Halfway through the ramp-up, slots are 50 ms apart
+        assertEquals(0, gate.reserveSlot(3000));
+        assertEquals(50, gate.reserveSlot(3000));
+        // Ramp-up is over
+        assertEquals(0, gate.reserveSlot(4000));
+        assertEquals(0, gate.reserveSlot(4000));
+    }
+
+    @Test
+    public void rampUpIntervalFollowsRampUpLength()
+    {
+        ThrottleGate gate = new ThrottleGate();
+        gate.closeFor(200, 0);
+
+        assertEquals(0, gate.reserveSlot(200));
+        assertEquals(10, gate.reserveSlot(200));
+    }
+}
@@ -1,15 +1,19 @@
 package org.embulk.input.zendesk.clients;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
 import org.embulk.input.zendesk.ZendeskInputPlugin.PluginTask;
 import org.embulk.input.zendesk.utils.ZendeskTestHelper;
 import org.embulk.input.zendesk.utils.ZendeskUtils;
@@ -18,13 +22,29 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import static org.apache.http.HttpHeaders.AUTHORIZATION;
 import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER;
+import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER_FACTORY;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
@@ -67,6 +87,333 @@ public class TestZendeskRestClient
         assertEquals(expectedResult.toString(), result);
     }
 
+    @Test
+    public void doGetRecordsSuccess()
+    {
+        setup("doGet200");
+        JsonNode expectedResult = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        List<JsonNode> records = new ArrayList<>();
+
+        JsonNode fields = zendeskRestClient.doGetRecords("dummyString", task, false, "tickets", records::add);
+        assertEquals(expectedResult.get("tickets").size(), records.size());
+        assertEquals(expectedResult.get("end_time"), fields.get("end_time"));
+    }
+
+    @Test
+    public void doGetDecompressGzipResponse() throws IOException
+    {
+        JsonNode expectedResult = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        byte[] body = expectedResult.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray());
+        entity.setContentEncoding("gzip");
+        when(statusLine.getStatusCode()).thenReturn(200);
+        when(response.getEntity()).thenReturn(entity);
+
+        String result = zendeskRestClient.doGet("dummyString", task, false);
+        assertEquals(expectedResult.toString(), result);
+
+        TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        zendeskRestClient.addStatsToTaskReport(taskReport);
+        TaskReport transferReport = taskReport.getNested("http_transfer");
+        assertEquals(1, transferReport.get(Long.class, "compressed_responses").longValue());
+        assertEquals(compressed.size(), transferReport.get(Long.class, "received_bytes").longValue());
+        assertEquals(body.length, transferReport.get(Long.class, "decompressed_bytes").longValue());
+    }
+
+    @Test
+    public void doGetAsyncSuccess() throws Exception
+    {
+        setup("doGet200");
+        JsonNode expectedResult = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        JsonNode result = zendeskRestClient.doGetAsync("dummyString", task, false).get(10, TimeUnit.SECONDS);
+        assertEquals(expectedResult, result);
+    }
+
+    @Test
+    public void doGetAsyncRetrySuccess() throws Exception
+    {
+        JsonNode messageResponse = data.get("doGet500");
+        JsonNode messageResponseSuccess = data.get("doGet200");
+        setupRateLimit();
+        when(statusLine.getStatusCode())
+                .thenReturn(messageResponse.get("statusCode").asInt())
+                .thenReturn(messageResponseSuccess.get("statusCode").asInt());
+        when(response.getEntity())
+                .thenReturn(new StringEntity(messageResponse.get("description").asText()))
+                .thenReturn(new StringEntity(messageResponseSuccess.get("body").toString()));
+
+        JsonNode result = zendeskRestClient.doGetAsync("dummyString", task, false).get(30, TimeUnit.SECONDS);
+        assertEquals(messageResponseSuccess.get("body"), result);
+        verify(zendeskRestClient, times(2)).createHttpClient();
+    }
+
+    @Test
+    public void doGetAsyncRetry503WaitRetryAfter() throws Exception
+    {
+        setupRateLimit();
+        Header retryAfterHeader = mock(Header.class);
+        when(retryAfterHeader.getValue()).thenReturn("3");
+        when(response.getFirstHeader("Retry-After")).thenReturn(retryAfterHeader).thenReturn(null);
+        when(statusLine.getStatusCode()).thenReturn(503).thenReturn(200);
+        when(response.getEntity())
+                .thenReturn(new StringEntity(data.get("doGet503").get("description").asText()))
+                .thenReturn(new StringEntity(data.get("doGet200").get("body").toString()));
+
+        long start = System.currentTimeMillis();
+        zendeskRestClient.doGetAsync("dummyString", task, false).get(30, TimeUnit.SECONDS);
+
+        assertTrue(System.currentTimeMillis() - start >= 3000);
+        verify(zendeskRestClient, times(2)).createHttpClient();
+    }
+
+    @Test
+    public void doGetAsyncKeepStatusClassification()
+    {
+        setup("doGet405");
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> zendeskRestClient.doGetAsync("dummyString", task, false).get(10, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof ConfigException);
+        verify(zendeskRestClient, times(1)).createHttpClient();
+    }
+
+    @Test
+    public void asyncEngineSendRequests() throws Exception
+    {
+        JsonNode expectedResult = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        byte[] body = expectedResult.toString().getBytes(StandardCharsets.UTF_8);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+        try {
+            String loginUrl = "http://localhost:" + server.getAddress().getPort();
+            ConfigSource configSource = ZendeskTestHelper.getConfigSource("incremental.yml");
+            configSource.set("login_url", loginUrl);
+            configSource.set("http_engine", "async");
+            PluginTask asyncTask = CONFIG_MAPPER.map(configSource, PluginTask.class);
+
+            assertEquals(expectedResult.toString(), zendeskRestClient.doGet(loginUrl + "/api/v2/tickets.json", asyncTask, false));
+            assertEquals(expectedResult, zendeskRestClient.doGetAsync(loginUrl + "/api/v2/tickets.json", asyncTask, false).get(30, TimeUnit.SECONDS));
+            verify(zendeskRestClient, times(0)).createHttpClient();
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void asyncEngineStreamRecords() throws Exception
+    {
+        CountDownLatch firstRecord = new CountDownLatch(1);
+        AtomicBoolean isStreamed = new AtomicBoolean();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write("{\"tickets\":[{\"id\":1},".getBytes(StandardCharsets.UTF_8));
+                outputStream.flush();
+                // The rest of the body is only sent once the first record reached the consumer
+                try {
+                    isStreamed.set(firstRecord.await(10, TimeUnit.SECONDS));
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                outputStream.write("{\"id\":2}],\"count\":2}".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        server.start();
+        try {
+            String loginUrl = "http://localhost:" + server.getAddress().getPort();
+            ConfigSource configSource = ZendeskTestHelper.getConfigSource("incremental.yml");
+            configSource.set("login_url", loginUrl);
+            configSource.set("http_engine", "async");
+            PluginTask asyncTask = CONFIG_MAPPER.map(configSource, PluginTask.class);
+
+            List<JsonNode> records = new ArrayList<>();
+            AtomicInteger inFlightRequests = new AtomicInteger();
+            JsonNode page = zendeskRestClient.doGetRecords(loginUrl + "/api/v2/incremental/tickets.json", asyncTask, false, "tickets", record -> {
+                records.add(record);
+                inFlightRequests.set(ZendeskRestClient.getInFlightRequests(asyncTask).getRequests());
+                firstRecord.countDown();
+            });
+            assertTrue(isStreamed.get());
+            assertEquals(2, records.size());
+            assertEquals(2, page.get("count").asInt());
+            // The page holds a place of max_in_flight_requests while it is read
+            assertEquals(1, inFlightRequests.get());
+            assertEquals(0, ZendeskRestClient.getInFlightRequests(asyncTask).getRequests());
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void queueAsyncRequestsPastMaxInFlightRequests() throws Exception
+    {
+        setup("doGet200");
+        PluginTask oneInFlight = CONFIG_MAPPER.map(ZendeskTestHelper.getConfigSource("incremental.yml")
+                .set("login_url", "https://in-flight.zendesk.com").set("max_in_flight_requests", 1).set("coalesce_requests", false), PluginTask.class);
+
+        // The second request is sent by the callback of the first one, on the thread completing it
+        JsonNode second = zendeskRestClient.doGetAsync("https://in-flight.zendesk.com/api/v2/tickets/1.json", oneInFlight, false)
+                .thenCompose(first -> zendeskRestClient.doGetAsync("https://in-flight.zendesk.com/api/v2/tickets/2.json", oneInFlight, false))
+                .get(30, TimeUnit.SECONDS);
+        assertEquals(data.get("doGet200").get("body"), second);
+        assertEquals(0, ZendeskRestClient.getInFlightRequests(oneInFlight).getRequests());
+    }
+
+    @Test
+    public void keepInFlightRequestsPerAccount()
+    {
+        PluginTask small = CONFIG_MAPPER.map(ZendeskTestHelper.getConfigSource("incremental.yml").set("max_in_flight_requests", 5), PluginTask.class);
+        PluginTask large = CONFIG_MAPPER.map(ZendeskTestHelper.getConfigSource("incremental.yml").set("max_in_flight_requests", 50), PluginTask.class);
+        PluginTask otherAccount = CONFIG_MAPPER.map(ZendeskTestHelper.getConfigSource("incremental.yml").set("max_in_flight_requests", 5)
+                .set("login_url", "https://other.zendesk.com"), PluginTask.class);
+
+        assertTrue(ZendeskRestClient.getInFlightRequests(small) == ZendeskRestClient.getInFlightRequests(small));
+        assertTrue(ZendeskRestClient.getInFlightRequests(small) != ZendeskRestClient.getInFlightRequests(large));
+        assertTrue(ZendeskRestClient.getInFlightRequests(small) != ZendeskRestClient.getInFlightRequests(otherAccount));
+    }
+
+    @Test
+    public void hedgeSlowRequest() throws Exception
+    {
+        ConfigSource configSource = ZendeskTestHelper.getConfigSource("incremental.yml");
+        configSource.set("login_url", "https://hedge.zendesk.com");
+        configSource.set("hedge_requests", true);
+        // Every warm up request has to reach the server
+        configSource.set("response_cache_ttl_sec", 0);
+        PluginTask hedgeTask = CONFIG_MAPPER.map(configSource, PluginTask.class);
+        setupRateLimit();
+        // Leave enough budget for the hedge
+        when(header.getValue()).thenReturn("60000");
+        when(statusLine.getStatusCode()).thenReturn(200);
+        when(response.getEntity()).thenAnswer(invocation -> new StringEntity(data.get("doGet200").get("body").toString()));
+
+        // Warm up the latency percentiles with fast responses
+        for (int i = 0; i < 20; i++) {
+            zendeskRestClient.doGet("https://hedge.zendesk.com/api/v2/tickets.json", hedgeTask, false);
+        }
+
+        CountDownLatch releasePrimary = new CountDownLatch(1);
+        when(client.execute(any()))
+                .thenAnswer(invocation -> {
+                    releasePrimary.await(10, TimeUnit.SECONDS);
+                    return response;
+                })
+                .thenReturn(response);
+        try {
+            zendeskRestClient.doGet("https://hedge.zendesk.com/api/v2/tickets.json", hedgeTask, false);
+        }
+        finally {
+            releasePrimary.countDown();
+        }
+
+        TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        zendeskRestClient.addStatsToTaskReport(taskReport);
+        TaskReport latencyReport = taskReport.getNested("http_latency");
+        assertEquals(1, latencyReport.get(Long.class, "hedges_sent").longValue());
+        assertEquals(1, latencyReport.get(Long.class, "hedges_won").longValue());
+    }
+
+    @Test
+    public void coalesceConcurrentRequestsToTheSameUrl() throws Exception
+    {
+        setup("doGet200");
+        CountDownLatch releaseRequest = new CountDownLatch(1);
+        when(client.execute(any())).thenAnswer(invocation -> {
+            releaseRequest.await(10, TimeUnit.SECONDS);
+            return response;
+        });
+
+        CompletableFuture<JsonNode> first = zendeskRestClient.doGetAsync("https://abc.zendesk.com/api/v2/users/1/events.json", task, false);
+        CompletableFuture<JsonNode> second = zendeskRestClient.doGetAsync("https://abc.zendesk.com/api/v2/users/1/events.json", task, false);
+        releaseRequest.countDown();
+
+        assertEquals(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+        verify(client, times(1)).execute(any());
+        TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        zendeskRestClient.addStatsToTaskReport(taskReport);
+        assertEquals(1, taskReport.getNested("http_coalescing").get(Long.class, "coalesced_requests").longValue());
+    }
+
+    @Test
+    public void giveEachCallerItsOwnCopyOfSharedResponses() throws Exception
+    {
+        setup("doGet200");
+        JsonNode first = zendeskRestClient.doGetAsync("https://abc.zendesk.com/api/v2/tickets/1/comments.json", task, false).get(10, TimeUnit.SECONDS);
+        ((ObjectNode) first).put("mutated", true);
+
+        // Served from the cache, the change made by the first caller isn't seen
+        JsonNode second = zendeskRestClient.doGetAsync("https://abc.zendesk.com/api/v2/tickets/1/comments.json", task, false).get(10, TimeUnit.SECONDS);
+        verify(client, times(1)).execute(any());
+        assertFalse(second.has("mutated"));
+        assertEquals(data.get("doGet200").get("body"), second);
+    }
+
+    @Test
+    public void serveImmediateRepeatsFromCache() throws IOException
+    {
+        setup("doGet200");
+        String first = zendeskRestClient.doGet("https://abc.zendesk.com/api/v2/tickets.json", task, false);
+        String second = zendeskRestClient.doGet("https://abc.zendesk.com/api/v2/tickets.json", task, false);
+
+        assertEquals(first, second);
+        verify(client, times(1)).execute(any());
+        TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        zendeskRestClient.addStatsToTaskReport(taskReport);
+        assertEquals(1, taskReport.getNested("http_coalescing").get(Long.class, "cached_responses").longValue());
+    }
+
+    @Test
+    public void sendEveryRequestWithoutCoalescing() throws IOException
+    {
+        setup("doGet200");
+        ConfigSource configSource = ZendeskTestHelper.getConfigSource("incremental.yml");
+        configSource.set("coalesce_requests", false);
+        PluginTask notCoalescedTask = CONFIG_MAPPER.map(configSource, PluginTask.class);
+
+        zendeskRestClient.doGet("https://abc.zendesk.com/api/v2/tickets.json", notCoalescedTask, false);
+        zendeskRestClient.doGet("https://abc.zendesk.com/api/v2/tickets.json", notCoalescedTask, false);
+        verify(client, times(2)).execute(any());
+    }
+
+    @Test
+    public void setTimeoutsOnRequest() throws IOException
+    {
+        setup("doGet200");
+        ConfigSource configSource = ZendeskTestHelper.getConfigSource("incremental.yml");
+        configSource.set("connect_timeout_sec", 10);
+        configSource.set("read_timeout_sec", 20);
+        PluginTask timeoutTask = CONFIG_MAPPER.map(configSource, PluginTask.class);
+
+        zendeskRestClient.doGet("any", timeoutTask, false);
+
+        ArgumentCaptor<HttpRequestBase> request = ArgumentCaptor.forClass(HttpRequestBase.class);
+        verify(client).execute(request.capture());
+        assertEquals(10000, request.getValue().getConfig().getConnectTimeout());
+        assertEquals(20000, request.getValue().getConfig().getSocketTimeout());
+    }
+
+    @Test
+    public void addStatsToTaskReportCountRequests()
+    {
+        setupReTrySuccess("doGet500");
+
+        TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+        zendeskRestClient.addStatsToTaskReport(taskReport);
+        assertEquals(2, taskReport.getNested("http_connection_pool").get(Long.class, "requests").longValue());
+    }
+
     @Test
     public void doGetRetryFail429WithoutRetryAfter()
     {
@@ -134,6 +481,20 @@ public class TestZendeskRestClient
         setupReTrySuccess("doGet503");
     }
 
+    @Test
+    public void doGetRetry503WithoutBody() throws IOException
+    {
+        setupRateLimit();
+        when(statusLine.getStatusCode()).thenReturn(503).thenReturn(200);
+        // The error response has no entity at all
+        when(response.getEntity())
+                .thenReturn(null)
+                .thenReturn(new StringEntity(data.get("doGet200").get("body").toString()));
+
+        assertEquals(data.get("doGet200").get("body").toString(), zendeskRestClient.doGet("any", task, false));
+        verify(zendeskRestClient, times(2)).createHttpClient();
+    }
+
     @Test
     public void doGetRetry404()
     {
@@ -225,6 +586,26 @@ public class TestZendeskRestClient
         verify(zendeskRestClient, times(expectedRetryTime)).createHttpClient();
     }
 
+    @Test
+    public void doGetRetry503WaitRetryAfter() throws IOException
+    {
+        setupRateLimit();
+        Header retryAfterHeader = mock(Header.class);
+        when(retryAfterHeader.getValue()).thenReturn("3");
+        when(response.getFirstHeader("Retry-After")).thenReturn(retryAfterHeader).thenReturn(null);
+        when(statusLine.getStatusCode()).thenReturn(503).thenReturn(200);
+        when(response.getEntity())
+                .thenReturn(new StringEntity(data.get("doGet503").get("description").asText()))
+                .thenReturn(new StringEntity(data.get("doGet200").get("body").toString()));
+
+        long start = System.currentTimeMillis();
+        zendeskRestClient.doGet("any", task, false);
+
+        // A 503 doesn't close the throttle gate, the retry itself waits for Retry-After
+        assertTrue(System.currentTimeMillis() - start >= 3000);
+        verify(zendeskRestClient, times(2)).createHttpClient();
+    }
+
     @Test
     public void doGetRetryWhenThrowIOException() throws IOException
     {
@@ -0,0 +1,203 @@
+package org.embulk.input.zendesk.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.input.zendesk.ZendeskInputPlugin;
+import org.embulk.input.zendesk.clients.ZendeskRestClient;
+import org.embulk.input.zendesk.utils.ZendeskTestHelper;
+import org.embulk.input.zendesk.utils.ZendeskUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER;
+import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestIncludeFetcher
+{
+    private static final String COMMENTS_URL = "https://abc.zendesk.com/api/v2/tickets/1/comments.json";
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ZendeskRestClient zendeskRestClient;
+
+    @Before
+    public void prepare()
+    {
+        zendeskRestClient = mock(ZendeskRestClient.class);
+    }
+
+    @Test
+    public void testFetchPagesByNumberWhenCountIsKnown()
+    {
+        mockPage(COMMENTS_URL, "{\"comments\":[{\"id\":1},{\"id\":2}],\"count\":5,\"next_page\":\"" + COMMENTS_URL + "?page=2\"}");
+        mockPage(COMMENTS_URL + "?page=2", "{\"comments\":[{\"id\":3},{\"id\":4}],\"count\":5,\"next_page\":\"" + COMMENTS_URL + "?page=3\"}");
+        mockPage(COMMENTS_URL + "?page=3", "{\"comments\":[{\"id\":5}],\"count\":5,\"next_page\":null}");
+
+        JsonNode ticket = getIncludeFetcher(10).fetchAsync(ZendeskUtils.parseJsonObject("{\"id\":1}")).join();
+
+        assertEquals(5, ticket.get("comments").size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i + 1, ticket.get("comments").get(i).get("id").asInt());
+        }
+        verify(zendeskRestClient, times(3)).doGetAsync(any(), any(), anyBoolean());
+    }
+
+    @Test
+    public void testFollowCursorLinks()
+    {
+        String nextUrl = COMMENTS_URL + "?page%5Bafter%5D=abc";
+        mockPage(COMMENTS_URL, "{\"comments\":[{\"id\":1}],\"meta\":{\"has_more\":true},\"links\":{\"next\":\"" + nextUrl + "\"}}");
+        mockPage(nextUrl, "{\"comments\":[{\"id\":2}],\"meta\":{\"has_more\":false},\"links\":{\"next\":null}}");
+
+        JsonNode ticket = getIncludeFetcher(10).fetchAsync(ZendeskUtils.parseJsonObject("{\"id\":1}")).join();
+
+        assertEquals(2, ticket.get("comments").size());
+        assertEquals(2, ticket.get("comments").get(1).get("id").asInt());
+    }
+
+    @Test
+    public void testStopAtIncludeMaxPages()
+    {
+        mockPage(COMMENTS_URL, "{\"comments\":[{\"id\":1}],\"count\":3,\"next_page\":\"" + COMMENTS_URL + "?page=2\"}");
+        mockPage(COMMENTS_URL + "?page=2", "{\"comments\":[{\"id\":2}],\"count\":3,\"next_page\":\"" + COMMENTS_URL + "?page=3\"}");
+
+        JsonNode ticket = getIncludeFetcher(2).fetchAsync(ZendeskUtils.parseJsonObject("{\"id\":1}")).join();
+
+        assertEquals(2, ticket.get("comments").size());
+        verify(zendeskRestClient, times(2)).doGetAsync(any(), any(), anyBoolean());
+    }
+
+    @Test
+    public void testServeUnchangedRecordsFromCache()
+    {
+        mockPage(COMMENTS_URL, "{\"comments\":[{\"id\":1}],\"count\":1,\"next_page\":null}");
+        ConfigSource src = getConfigSource(10);
+        src.set("include_cache_dir", folder.getRoot().getPath());
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+
+        try (IncludeFetcher includeFetcher = new IncludeFetcher(task, new IncludePlanner(task, true), () -> zendeskRestClient)) {
+            includeFetcher.fetchAsync(ZendeskUtils.parseJsonObject("{\"id\":1,\"updated_at\":\"2019-02-20T06:51:50Z\"}")).join();
+        }
+        // Next run
+        try (IncludeFetcher includeFetcher = new IncludeFetcher(task, new IncludePlanner(task, true), () -> zendeskRestClient)) {
+            JsonNode ticket = includeFetcher.fetchAsync(ZendeskUtils.parseJsonObject("{\"id\":1,\"updated_at\":\"2019-02-20T06:51:50Z\"}")).join();
+            assertEquals(1, ticket.get("comments").get(0).get("id").asInt());
+            includeFetcher.fetchAsync(ZendeskUtils.parseJsonObject("{\"id\":1,\"updated_at\":\"2019-02-21T00:00:00Z\"}")).join();
+
+            TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+            includeFetcher.addStatsToTaskReport(taskReport);
+            assertEquals(1, taskReport.get(JsonNode.class, "includes").get("cache_hits").asLong());
+        }
+        verify(zendeskRestClient, times(2)).doGetAsync(any(), any(), anyBoolean());
+    }
+
+    @Test
+    public void testNotShareCacheAcrossAccounts()
+    {
+        mockPage(COMMENTS_URL, "{\"comments\":[{\"id\":1}],\"count\":1,\"next_page\":null}");
+        ConfigSource src = getConfigSource(10);
+        src.set("include_cache_dir", folder.getRoot().getPath());
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+        ZendeskInputPlugin.PluginTask otherTask = CONFIG_MAPPER.map(src.deepCopy().set("access_token", "other"), ZendeskInputPlugin.PluginTask.class);
+
+        try (IncludeFetcher includeFetcher = new IncludeFetcher(task, new IncludePlanner(task, true), () -> zendeskRestClient)) {
+            includeFetcher.fetchAsync(ZendeskUtils.parseJsonObject("{\"id\":1,\"updated_at\":\"2019-02-20T06:51:50Z\"}")).join();
+        }
+        // Same record id and updated_at in another account
+        try (IncludeFetcher includeFetcher = new IncludeFetcher(otherTask, new IncludePlanner(otherTask, true), () -> zendeskRestClient)) {
+            includeFetcher.fetchAsync(ZendeskUtils.parseJsonObject("{\"id\":1,\"updated_at\":\"2019-02-20T06:51:50Z\"}")).join();
+
+            TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
+            includeFetcher.addStatsToTaskReport(taskReport);
+            assertEquals(0, taskReport.get(JsonNode.class, "includes").get("cache_hits").asLong());
+        }
+        verify(zendeskRestClient, times(2)).doGetAsync(any(), any(), anyBoolean());
+    }
+
+    @Test
+    public void testFetchPagesWithOneRequestInFlight() throws Exception
+    {
+        HttpClient httpClient = mock(HttpClient.class);
+        when(httpClient.execute(any())).thenAnswer(invocation -> {
+            URI uri = ((HttpUriRequest) invocation.getArgument(0)).getURI();
+            int page = uri.getQuery() == null ? 1 : Integer.parseInt(uri.getQuery().substring(uri.getQuery().indexOf('=') + 1));
+            String nextPage = page < 3 ? "\"https://abc.zendesk.com" + uri.getPath() + "?page=" + (page + 1) + "\"" : "null";
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            response.setEntity(new StringEntity("{\"comments\":[{\"id\":" + page + "}],\"count\":3,\"next_page\":" + nextPage + "}"));
+            return response;
+        });
+        ConfigSource src = getConfigSource(10)
+                .set("max_in_flight_requests", 1)
+                .set("coalesce_requests", false);
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+        ZendeskRestClient restClient = new ZendeskRestClient()
+        {
+            @Override
+            protected HttpClient createHttpClient()
+            {
+                return httpClient;
+            }
+        };
+        IncludeFetcher includeFetcher = new IncludeFetcher(task, new IncludePlanner(task, true), () -> restClient);
+
+        // The next pages of a record are asked for by the thread completing its first page, while the other records wait for their turn
+        List<CompletableFuture<JsonNode>> tickets = new ArrayList<>();
+        for (int id = 1; id <= 5; id++) {
+            tickets.add(includeFetcher.fetchAsync(ZendeskUtils.parseJsonObject("{\"id\":" + id + "}")));
+        }
+        for (CompletableFuture<JsonNode> ticket : tickets) {
+            JsonNode comments = ticket.get(30, TimeUnit.SECONDS).get("comments");
+            assertEquals(3, comments.size());
+            assertEquals(3, comments.get(2).get("id").asInt());
+        }
+        verify(httpClient, times(15)).execute(any());
+    }
+
+    private void mockPage(final String url, final String page)
+    {
+        when(zendeskRestClient.doGetAsync(eq(url), any(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(ZendeskUtils.parseJsonObject(page)));
+    }
+
+    private IncludeFetcher getIncludeFetcher(final int includeMaxPages)
+    {
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(getConfigSource(includeMaxPages), ZendeskInputPlugin.PluginTask.class);
+        return new IncludeFetcher(task, new IncludePlanner(task, true), () -> zendeskRestClient);
+    }
+
+    private ConfigSource getConfigSource(final int includeMaxPages)
+    {
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml");
+        src.set("includes", Collections.singletonList("comments"));
+        src.set("include_max_pages", includeMaxPages);
+        return src;
+    }
+}
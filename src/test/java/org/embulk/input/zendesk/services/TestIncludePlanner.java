@@ -0,0 +1,112 @@
+package org.embulk.input.zendesk.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.input.zendesk.ZendeskInputPlugin;
+import org.embulk.input.zendesk.utils.ZendeskTestHelper;
+import org.embulk.input.zendesk.utils.ZendeskUtils;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestIncludePlanner
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void testSplitSideloadsAndPerRecordIncludes()
+    {
+        IncludePlanner planner = new IncludePlanner(getTask(true, "users", "ticket_audits", "comment_count"), true);
+        assertTrue(planner.hasSideloads());
+        assertEquals("users,comment_count", planner.getPageIncludeParameter());
+        assertEquals(Collections.singletonList("ticket_audits"), planner.getPerRecordIncludes());
+    }
+
+    @Test
+    public void testNothingToJoinWithCommentCountOnly()
+    {
+        IncludePlanner planner = new IncludePlanner(getTask(true, "comment_count"), true);
+        assertFalse(planner.hasSideloads());
+        assertEquals("comment_count", planner.getPageIncludeParameter());
+        assertEquals(Collections.emptyList(), planner.getPerRecordIncludes());
+    }
+
+    @Test
+    public void testNoSideloadsWhenDisabled()
+    {
+        IncludePlanner planner = new IncludePlanner(getTask(false, "users"), true);
+        assertFalse(planner.hasSideloads());
+        assertEquals(Collections.singletonList("users"), planner.getPerRecordIncludes());
+
+        planner = new IncludePlanner(getTask(true, "users"), false);
+        assertFalse(planner.hasSideloads());
+    }
+
+    @Test
+    public void testJoinSideloadsOntoRecords()
+    {
+        IncludePlanner planner = new IncludePlanner(getTask(true, "users", "groups", "metric_sets"), true);
+        List<JsonNode> records = Arrays.asList(
+                ZendeskUtils.parseJsonObject("{\"id\":1,\"requester_id\":10,\"assignee_id\":11,\"collaborator_ids\":[10,12],\"group_id\":20}"),
+                ZendeskUtils.parseJsonObject("{\"id\":2,\"requester_id\":12,\"assignee_id\":null,\"group_id\":21}"));
+        JsonNode fields = ZendeskUtils.parseJsonObject("{\"users\":[{\"id\":10},{\"id\":11},{\"id\":12}],"
+                + "\"groups\":[{\"id\":20}],"
+                + "\"metric_sets\":[{\"id\":100,\"ticket_id\":2}]}");
+
+        planner.joinSideloads(records, fields);
+
+        // Each user once, even when referenced by several fields
+        assertEquals(3, records.get(0).get("users").size());
+        assertEquals(1, records.get(1).get("users").size());
+        assertEquals(12, records.get(1).get("users").get(0).get("id").asLong());
+        assertEquals(1, records.get(0).get("groups").size());
+        assertEquals(0, records.get(1).get("groups").size());
+        assertEquals(0, records.get(0).get("metric_sets").size());
+        assertEquals(100, records.get(1).get("metric_sets").get(0).get("id").asLong());
+    }
+
+    @Test
+    public void testPruneIncludesOfDeletedTicketsAndTicketsWithoutComments()
+    {
+        IncludePlanner planner = new IncludePlanner(getTask(false, "comments", "audits"), true);
+        // Sideloaded to know which tickets have no comment
+        assertEquals("comment_count", planner.getPageIncludeParameter());
+        assertFalse(planner.hasSideloads());
+
+        JsonNode ticket = ZendeskUtils.parseJsonObject("{\"id\":1,\"status\":\"open\",\"comment_count\":0}");
+        assertTrue(planner.isPrunable("comments", ticket));
+        assertFalse(planner.isPrunable("audits", ticket));
+        assertFalse(planner.isPrunable("comments", ZendeskUtils.parseJsonObject("{\"id\":1,\"status\":\"open\",\"comment_count\":2}")));
+        assertFalse(planner.isPrunable("comments", ZendeskUtils.parseJsonObject("{\"id\":1,\"status\":\"open\"}")));
+        assertTrue(planner.isPrunable("audits", ZendeskUtils.parseJsonObject("{\"id\":1,\"status\":\"deleted\"}")));
+    }
+
+    @Test
+    public void testNoPruneWhenDisabled()
+    {
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml");
+        src.set("includes", Collections.singletonList("comments"));
+        src.set("prune_includes", false);
+        IncludePlanner planner = new IncludePlanner(CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class), true);
+        assertEquals("", planner.getPageIncludeParameter());
+        assertFalse(planner.isPrunable("comments", ZendeskUtils.parseJsonObject("{\"id\":1,\"status\":\"deleted\",\"comment_count\":0}")));
+    }
+
+    private ZendeskInputPlugin.PluginTask getTask(final boolean sideloadIncludes, final String... includes)
+    {
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml");
+        src.set("includes", Arrays.asList(includes));
+        src.set("sideload_includes", sideloadIncludes);
+        return CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+    }
+}
@@ -0,0 +1,89 @@
+package org.embulk.input.zendesk.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.embulk.input.zendesk.RecordImporter;
+import org.embulk.input.zendesk.utils.MemoryBudget;
+import org.embulk.input.zendesk.utils.ZendeskUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class TestPendingRecords
+{
+    @Test
+    public void testAwaitMoreRecordsThanPhaserParties() throws Exception
+    {
+        int records = 70000;
+        RecordImporter recordImporter = mock(RecordImporter.class);
+        PendingRecords pendingRecords = new PendingRecords(new MemoryBudget(Long.MAX_VALUE));
+        JsonNode record = ZendeskUtils.parseJsonObject("{\"id\":1}");
+
+        List<CompletableFuture<JsonNode>> futures = new ArrayList<>();
+        for (int i = 0; i < records; i++) {
+            CompletableFuture<JsonNode> future = new CompletableFuture<>();
+            futures.add(future);
+            pendingRecords.add(future, recordImporter, 1);
+        }
+        assertEquals(records, pendingRecords.getPendingCount());
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            executor.schedule(() -> futures.forEach(future -> future.complete(record)), 100, TimeUnit.MILLISECONDS);
+            pendingRecords.awaitAll();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(0, pendingRecords.getPendingCount());
+        verify(recordImporter, times(records)).addRecord(any());
+    }
+
+    @Test
+    public void testTakeRecordsFromThePageReservation()
+    {
+        RecordImporter recordImporter = mock(RecordImporter.class);
+        MemoryBudget memoryBudget = new MemoryBudget(100);
+        PendingRecords pendingRecords = new PendingRecords(memoryBudget);
+        JsonNode record = ZendeskUtils.parseJsonObject("{\"id\":1}");
+
+        // Nothing to reserve for the first page, its records go past the limit without waiting
+        CompletableFuture<JsonNode> first = new CompletableFuture<>();
+        CompletableFuture<JsonNode> second = new CompletableFuture<>();
+        pendingRecords.reservePage();
+        pendingRecords.take(80);
+        pendingRecords.add(first, recordImporter, 80);
+        pendingRecords.take(40);
+        pendingRecords.add(second, recordImporter, 40);
+        pendingRecords.releasePage();
+        assertEquals(120, memoryBudget.getUsedBytes());
+
+        first.complete(record);
+        second.complete(record);
+        assertEquals(0, memoryBudget.getUsedBytes());
+
+        // The next page reserves as much as the largest page, and gives back what its records didn't take
+        CompletableFuture<JsonNode> third = new CompletableFuture<>();
+        pendingRecords.reservePage();
+        assertEquals(120, memoryBudget.getUsedBytes());
+        pendingRecords.take(30);
+        pendingRecords.add(third, recordImporter, 30);
+        pendingRecords.releasePage();
+        assertEquals(30, memoryBudget.getUsedBytes());
+
+        third.complete(record);
+        assertEquals(0, memoryBudget.getUsedBytes());
+        verify(recordImporter, times(3)).addRecord(any());
+    }
+}
@@ -1,6 +1,8 @@
 package org.embulk.input.zendesk.services;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.embulk.EmbulkTestRuntime;
 
 import org.embulk.config.TaskReport;
@@ -14,10 +16,16 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
 import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.contains;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -52,7 +60,7 @@ public class TestZendeskCursorBasedService
 
         zendeskCursorBasedService.addRecordToImporter(0, recordImporter);
         final ArgumentCaptor<String> actualString = ArgumentCaptor.forClass(String.class);
-        verify(zendeskRestClient, times(1)).doGet(actualString.capture(), any(), anyBoolean());
+        verify(zendeskRestClient, times(1)).doGetRecords(actualString.capture(), any(), anyBoolean(), any(), any());
         assertTrue(actualString.getAllValues().contains(expectedString));
 
         verify(recordImporter, times(1)).addRecord(any());
@@ -69,7 +77,7 @@ public class TestZendeskCursorBasedService
 
         TaskReport taskReport = zendeskCursorBasedService.addRecordToImporter(0, recordImporter);
         final ArgumentCaptor<String> actualString = ArgumentCaptor.forClass(String.class);
-        verify(zendeskRestClient, times(2)).doGet(actualString.capture(), any(), anyBoolean());
+        verify(zendeskRestClient, times(2)).doGetRecords(actualString.capture(), any(), anyBoolean(), any(), any());
         assertTrue(actualString.getAllValues().get(0).contains(expectedString));
         assertTrue(actualString.getAllValues().get(1).contains(expectedNextString));
 
@@ -77,10 +85,55 @@ public class TestZendeskCursorBasedService
         assertTrue(taskReport.get(String.class, ZendeskConstants.Field.START_TIME).equals("1437638600"));
     }
 
+    @Test
+    public void testRunIncrementalFetchIncludesConcurrently()
+    {
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(ZendeskTestHelper.getConfigSource("incremental.yml")
+                .set("includes", Arrays.asList("comments", "audits")), ZendeskInputPlugin.PluginTask.class);
+        setupZendeskSupportAPIService(task);
+        loadData("data/cursor_based_tickets_incremental.json", "data/cursor_based_tickets.json");
+
+        ObjectNode commentsJson = JsonNodeFactory.instance.objectNode();
+        commentsJson.putArray("comments").addObject().put("id", 1);
+        ObjectNode auditsJson = JsonNodeFactory.instance.objectNode();
+        auditsJson.putArray("audits").addObject().put("id", 2);
+        when(zendeskRestClient.doGetAsync(contains("/comments.json"), any(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(commentsJson));
+        when(zendeskRestClient.doGetAsync(contains("/audits.json"), any(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(auditsJson));
+
+        zendeskCursorBasedService.addRecordToImporter(0, recordImporter);
+        verify(zendeskRestClient, times(4)).doGetAsync(any(), any(), anyBoolean());
+        final ArgumentCaptor<JsonNode> records = ArgumentCaptor.forClass(JsonNode.class);
+        verify(recordImporter, times(2)).addRecord(records.capture());
+        for (JsonNode record : records.getAllValues()) {
+            assertEquals(commentsJson.get("comments"), record.get("comments"));
+            assertEquals(auditsJson.get("audits"), record.get("audits"));
+        }
+    }
+
+    @Test
+    public void testFetchIncludesWhileThePageIsRead()
+    {
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(ZendeskTestHelper.getConfigSource("incremental.yml")
+                .set("includes", Collections.singletonList("comments")), ZendeskInputPlugin.PluginTask.class);
+        setupZendeskSupportAPIService(task);
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/cursor_based_tickets.json");
+        // The records take their bytes from the page reservation, the response isn't buffered before they're imported
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any())).thenAnswer(invocation -> {
+            final JsonNode page = ZendeskTestHelper.answerRecords(dataJson).answer(invocation);
+            verify(zendeskRestClient, times(1)).doGetAsync(any(), any(), anyBoolean());
+            return page;
+        });
+        when(zendeskRestClient.doGetAsync(any(), any(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(JsonNodeFactory.instance.objectNode()));
+
+        zendeskCursorBasedService.addRecordToImporter(0, recordImporter);
+        verify(zendeskRestClient, times(1)).doGetAsync(any(), any(), anyBoolean());
+        verify(recordImporter, times(1)).addRecord(any());
+    }
+
     private void loadData(String fileName)
     {
         JsonNode dataJson = ZendeskTestHelper.getJsonFromFile(fileName);
-        when(zendeskRestClient.doGet(any(), any(), anyBoolean())).thenReturn(dataJson.toString());
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any())).thenAnswer(ZendeskTestHelper.answerRecords(dataJson));
     }
 
     private void loadData(String fileName, String nextFile)
@@ -88,9 +141,9 @@ public class TestZendeskCursorBasedService
         JsonNode dataJson = ZendeskTestHelper.getJsonFromFile(fileName);
         JsonNode dataJsonNextFile = ZendeskTestHelper.getJsonFromFile(nextFile);
 
-        when(zendeskRestClient.doGet(any(), any(), anyBoolean()))
-            .thenReturn(dataJson.toString())
-            .thenReturn(dataJsonNextFile.toString());
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any()))
+            .thenAnswer(ZendeskTestHelper.answerRecords(dataJson))
+            .thenAnswer(ZendeskTestHelper.answerRecords(dataJsonNextFile));
     }
 
     private void setupZendeskSupportAPIService(ZendeskInputPlugin.PluginTask task)
@@ -1,6 +1,8 @@
 package org.embulk.input.zendesk.services;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
@@ -16,7 +18,18 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.embulk.input.zendesk.ZendeskInputPlugin.CONFIG_MAPPER;
 import static org.junit.Assert.assertEquals;
@@ -58,6 +71,27 @@ public class TestZendeskNormalService
         Assert.assertEquals(1550647054, taskReport.get(JsonNode.class, ZendeskConstants.Field.START_TIME).asLong());
     }
 
+    @Test
+    public void testAddRecordToImporterWithIncrementalAndLatestDedup()
+    {
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml");
+        src.set("dedup_strategy", "latest");
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+        setupZendeskSupportAPIService(task);
+
+        // ticket 1002 is returned twice, the second time with its latest state
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        ((ObjectNode) dataJson.get("tickets").get(4)).put("subject", "latest");
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any())).thenAnswer(ZendeskTestHelper.answerRecords(dataJson));
+
+        TaskReport taskReport = zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
+        final ArgumentCaptor<JsonNode> records = ArgumentCaptor.forClass(JsonNode.class);
+        verify(recordImporter, times(4)).addRecord(records.capture());
+        Assert.assertTrue(records.getAllValues().stream()
+                .anyMatch(record -> record.get("id").asLong() == 1002 && record.get("subject").asText().equals("latest")));
+        Assert.assertEquals(1550647054, taskReport.get(JsonNode.class, ZendeskConstants.Field.START_TIME).asLong());
+    }
+
     @Test
     public void testAddRecordToImporterWithIncrementalAndWithoutDedup()
     {
@@ -73,6 +107,72 @@ public class TestZendeskNormalService
         Assert.assertEquals(1550647054, taskReport.get(JsonNode.class, ZendeskConstants.Field.START_TIME).asLong());
     }
 
+    @Test
+    public void testAddRecordToImporterWithIncrementalAndAsyncEngine()
+    {
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml");
+        src.set("http_engine", "async");
+        src.set("includes", Collections.singletonList("comments"));
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+        setupZendeskSupportAPIService(task);
+        loadData("data/tickets.json");
+        JsonNode comments = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        when(zendeskRestClient.doGetAsync(any(), any(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(comments));
+
+        TaskReport taskReport = zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
+        verify(zendeskRestClient, times(4)).doGetAsync(any(), any(), anyBoolean());
+        verify(zendeskRestClient, times(0)).doGet(any(), any(), anyBoolean());
+        verify(recordImporter, times(4)).addRecord(any());
+        Assert.assertEquals(1550647054, taskReport.get(JsonNode.class, ZendeskConstants.Field.START_TIME).asLong());
+    }
+
+    @Test
+    public void testAddRecordToImporterWithIncrementalAndSideloadIncludes()
+    {
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml");
+        src.set("includes", Arrays.asList("organizations", "ticket_audits"));
+        src.set("sideload_includes", true);
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+        setupZendeskSupportAPIService(task);
+
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        ((ObjectNode) dataJson).putArray("organizations").addObject().put("id", 360857467053L).put("name", "org");
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any())).thenAnswer(ZendeskTestHelper.answerRecords(dataJson));
+        when(zendeskRestClient.doGetAsync(any(), any(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(dataJson));
+
+        zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
+        // Only ticket_audits is fetched per record
+        verify(zendeskRestClient, times(4)).doGetAsync(any(), any(), anyBoolean());
+        final ArgumentCaptor<JsonNode> records = ArgumentCaptor.forClass(JsonNode.class);
+        verify(recordImporter, times(4)).addRecord(records.capture());
+        for (JsonNode record : records.getAllValues()) {
+            assertEquals("org", record.get("organizations").get(0).get("name").asText());
+        }
+    }
+
+    @Test
+    public void testAddRecordToImporterWithIncrementalAndPrunedIncludes()
+    {
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml");
+        src.set("includes", Collections.singletonList("comments"));
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+        setupZendeskSupportAPIService(task);
+
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        ((ObjectNode) dataJson.get("tickets").get(0)).put("status", "deleted");
+        ((ObjectNode) dataJson.get("tickets").get(1)).put("comment_count", 0);
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any())).thenAnswer(ZendeskTestHelper.answerRecords(dataJson));
+        when(zendeskRestClient.doGet(any(), any(), anyBoolean())).thenReturn(dataJson.toString());
+        when(zendeskRestClient.doGetAsync(any(), any(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(dataJson));
+
+        TaskReport taskReport = zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
+        verify(zendeskRestClient, times(2)).doGetAsync(any(), any(), anyBoolean());
+        verify(recordImporter, times(4)).addRecord(any());
+        JsonNode includeReport = taskReport.get(JsonNode.class, "includes");
+        assertEquals(2, includeReport.get("requests").asLong());
+        assertEquals(2, includeReport.get("pruned_requests").asLong());
+    }
+
     @Test
     public void testAddRecordToImporterIncrementalContainUpdatedBySystemRecords()
     {
@@ -112,6 +212,39 @@ public class TestZendeskNormalService
         Assert.assertTrue(taskReport.isEmpty());
     }
 
+    @Test
+    public void testAddRecordToImporterNonIncrementalWithIncludesAndOneInFlightRequest() throws Exception
+    {
+        byte[] page = ZendeskTestHelper.getJsonFromFile("data/ticket_fields.json").toString().getBytes(StandardCharsets.UTF_8);
+        byte[] organizations = "{\"organizations\":[]}".getBytes(StandardCharsets.UTF_8);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = exchange.getRequestURI().getPath().equals("/api/v2/ticket_fields.json") ? page : organizations;
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+        // Started from the test thread, so that it runs in the Exec session of the test
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ConfigSource src = ZendeskTestHelper.getConfigSource("non-incremental.yml");
+            src.set("login_url", "http://localhost:" + server.getAddress().getPort());
+            src.set("http_engine", "async");
+            src.set("max_in_flight_requests", 1);
+            ZendeskSupportAPIService service = new ZendeskSupportAPIService(CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class));
+
+            // The page holds the only in-flight place while its records are read, their includes can't wait for it there
+            executor.submit(() -> service.addRecordToImporter(0, recordImporter)).get(30, TimeUnit.SECONDS);
+            verify(recordImporter, times(7)).addRecord(any());
+        }
+        finally {
+            executor.shutdownNow();
+            server.stop(0);
+        }
+    }
+
     @Test
     public void testAddRecordToImporterIncrementalForSupportAndAllRecordsShareTheSameTime()
     {
@@ -137,13 +270,13 @@ public class TestZendeskNormalService
 
         JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/ticket_events_share_same_time_with_next_page.json");
         JsonNode dataJsonNext = ZendeskTestHelper.getJsonFromFile("data/ticket_events_updated_by_system_records.json");
-        when(zendeskRestClient.doGet(any(), any(), anyBoolean()))
-                .thenReturn(dataJson.toString())
-                .thenReturn(dataJsonNext.toString());
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any()))
+                .thenAnswer(ZendeskTestHelper.answerRecords(dataJson))
+                .thenAnswer(ZendeskTestHelper.answerRecords(dataJsonNext));
 
         TaskReport taskReport = zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
         final ArgumentCaptor<String> url = ArgumentCaptor.forClass(String.class);
-        verify(zendeskRestClient, times(2)).doGet(url.capture(), any(), anyBoolean());
+        verify(zendeskRestClient, times(2)).doGetRecords(url.capture(), any(), anyBoolean(), any(), any());
         assertEquals(expectedURL, url.getValue());
 
         verify(recordImporter, times(4)).addRecord(any());
@@ -151,6 +284,126 @@ public class TestZendeskNormalService
         Assert.assertEquals(1550645523, taskReport.get(JsonNode.class, ZendeskConstants.Field.START_TIME).asLong());
     }
 
+    @Test
+    public void testTicketEventsAddRecordToImporterIncrementalWithPrefetch()
+    {
+        // api_end_time of ticket_events_share_same_time_with_next_page.json
+        String expectedURL = "https://abc.zendesk.com/api/v2/incremental/ticket_events.json?start_time=1550645443";
+        setupSupportAPIService("incremental.yml");
+        ZendeskInputPlugin.PluginTask task =
+            CONFIG_MAPPER.map(ZendeskTestHelper.getConfigSource("incremental.yml").set("target", "ticket_events").set("prefetch_depth", 2),
+                ZendeskInputPlugin.PluginTask.class);
+        setupZendeskSupportAPIService(task);
+
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/ticket_events_share_same_time_with_next_page.json");
+        JsonNode dataJsonNext = ZendeskTestHelper.getJsonFromFile("data/ticket_events_updated_by_system_records.json");
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any()))
+                .thenAnswer(ZendeskTestHelper.answerRecords(dataJson))
+                .thenAnswer(ZendeskTestHelper.answerRecords(dataJsonNext));
+
+        TaskReport taskReport = zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
+        final ArgumentCaptor<String> url = ArgumentCaptor.forClass(String.class);
+        verify(zendeskRestClient, times(2)).doGetRecords(url.capture(), any(), anyBoolean(), any(), any());
+        assertEquals(expectedURL, url.getValue());
+
+        verify(recordImporter, times(4)).addRecord(any());
+        // api_end_time of ticket_events_updated_by_system_records.json + 1
+        Assert.assertEquals(1550645523, taskReport.get(JsonNode.class, ZendeskConstants.Field.START_TIME).asLong());
+    }
+
+    @Test
+    public void testAddRecordToImporterIncrementalSkipsOnlyRecordsUpdatedBeforeTheJob()
+    {
+        setupSupportAPIService("incremental.yml");
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/tickets_continue.json");
+        JsonNode dataJsonNext = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any()))
+                .thenAnswer(ZendeskTestHelper.answerRecords(dataJson))
+                .thenAnswer(ZendeskTestHelper.answerRecords(dataJsonNext));
+
+        // The second page starts at 07:17:33, its records were updated before but after the start_time of the job, as in a sharded run
+        zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
+        final ArgumentCaptor<JsonNode> records = ArgumentCaptor.forClass(JsonNode.class);
+        verify(recordImporter, times(5)).addRecord(records.capture());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 1002L), records.getAllValues().stream().map(record -> record.get("id").asLong()).sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testAddRecordToImporterWithIncrementalShards()
+    {
+        // 2019-02-20 06:00:00 to 07:59:59 split into two windows of one hour
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml")
+                .set("start_time", "2019-02-20 06:00:00 +0000")
+                .set("incremental_shards", 2);
+        setupZendeskSupportAPIService(mapShardedTask(src, 1550649599L));
+        loadData("data/tickets.json");
+
+        // records 2, 3 and 4 are in the first window, the one updated at 07:17:33 in the second
+        TaskReport firstReport = zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
+        verify(recordImporter, times(3)).addRecord(any());
+        Assert.assertEquals(1550646000, firstReport.get(JsonNode.class, ZendeskConstants.Field.START_TIME).asLong());
+
+        setupZendeskSupportAPIService(mapShardedTask(src, 1550649599L));
+        TaskReport secondReport = zendeskSupportAPIService.addRecordToImporter(1, recordImporter);
+        verify(recordImporter, times(4)).addRecord(any());
+        // The last window goes on up to the end_time returned by the API, not the end of the split range
+        Assert.assertEquals(1550647054, secondReport.get(JsonNode.class, ZendeskConstants.Field.START_TIME).asLong());
+
+        final ArgumentCaptor<String> url = ArgumentCaptor.forClass(String.class);
+        verify(zendeskRestClient, times(2)).doGetRecords(url.capture(), any(), anyBoolean(), any(), any());
+        assertEquals("https://abc.zendesk.com/api/v2/incremental/tickets.json?start_time=1550642400", url.getAllValues().get(0));
+        assertEquals("https://abc.zendesk.com/api/v2/incremental/tickets.json?start_time=1550646000", url.getAllValues().get(1));
+    }
+
+    @Test
+    public void testAddRecordToImporterWithIncrementalShardsAndUpdatedAtOutOfOrder()
+    {
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml")
+                .set("start_time", "2019-02-20 06:00:00 +0000")
+                .set("incremental_shards", 2);
+
+        // Sorted by generated_timestamp: ticket 3 updated at 07:00:01 is followed by ticket 4 updated at 06:52:12,
+        // both generated after the end of the first window
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        ((ObjectNode) dataJson.get("tickets").get(1)).put("updated_at", "2019-02-20T07:00:01Z").put("generated_timestamp", 1550646001L);
+        ((ObjectNode) dataJson.get("tickets").get(2)).put("generated_timestamp", 1550646005L);
+
+        setupZendeskSupportAPIService(mapShardedTask(src, 1550649599L));
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any())).thenAnswer(ZendeskTestHelper.answerRecords(dataJson));
+        zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
+        final ArgumentCaptor<JsonNode> firstRecords = ArgumentCaptor.forClass(JsonNode.class);
+        verify(recordImporter, times(1)).addRecord(firstRecords.capture());
+        assertEquals(2, firstRecords.getValue().get("id").asLong());
+
+        recordImporter = mock(RecordImporter.class);
+        setupZendeskSupportAPIService(mapShardedTask(src, 1550649599L));
+        zendeskSupportAPIService.addRecordToImporter(1, recordImporter);
+        final ArgumentCaptor<JsonNode> secondRecords = ArgumentCaptor.forClass(JsonNode.class);
+        verify(recordImporter, times(3)).addRecord(secondRecords.capture());
+        assertEquals(Arrays.asList(3L, 4L, 1002L), secondRecords.getAllValues().stream().map(record -> record.get("id").asLong()).sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testTicketEventsAddRecordToImporterIncrementalWithBoundaryDedup()
+    {
+        setupSupportAPIService("incremental.yml");
+        ZendeskInputPlugin.PluginTask task =
+            CONFIG_MAPPER.map(ZendeskTestHelper.getConfigSource("incremental.yml").set("target", "ticket_events").set("dedup_strategy", "boundary"),
+                ZendeskInputPlugin.PluginTask.class);
+        setupZendeskSupportAPIService(task);
+
+        // every event of the first page is at its end_time, the second page returns them again
+        JsonNode dataJson = ZendeskTestHelper.getJsonFromFile("data/ticket_events_share_same_time_with_next_page.json");
+        JsonNode dataJsonNext = ZendeskTestHelper.getJsonFromFile("data/ticket_events_updated_by_system_records.json");
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any()))
+                .thenAnswer(ZendeskTestHelper.answerRecords(dataJson))
+                .thenAnswer(ZendeskTestHelper.answerRecords(dataJsonNext));
+
+        TaskReport taskReport = zendeskSupportAPIService.addRecordToImporter(0, recordImporter);
+        verify(recordImporter, times(4)).addRecord(any());
+        Assert.assertEquals(1550645523, taskReport.get(JsonNode.class, ZendeskConstants.Field.START_TIME).asLong());
+    }
+
     @Test
     public void testTicketEventsAddRecordToImporterIncrementalAndAllRecordsShareTheSameTime()
     {
@@ -246,10 +499,20 @@ public class TestZendeskNormalService
         setupZendeskSupportAPIService(task);
     }
 
+    private ZendeskInputPlugin.PluginTask mapShardedTask(ConfigSource src, long shardedEndTime)
+    {
+        // Set by the transaction only
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+        task.setShardedEndTime(Optional.of(shardedEndTime));
+        return task;
+    }
+
     private void loadData(String fileName)
     {
         JsonNode dataJson = ZendeskTestHelper.getJsonFromFile(fileName);
+        when(zendeskRestClient.doGetRecords(any(), any(), anyBoolean(), any(), any())).thenAnswer(ZendeskTestHelper.answerRecords(dataJson));
         when(zendeskRestClient.doGet(any(), any(), anyBoolean())).thenReturn(dataJson.toString());
+        when(zendeskRestClient.doGetAsync(any(), any(), anyBoolean())).thenReturn(CompletableFuture.completedFuture(dataJson));
     }
 
     private void setupZendeskSupportAPIService(ZendeskInputPlugin.PluginTask task)
@@ -18,6 +18,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
 import java.util.Collections;
 
 public class TestZendeskSupportAPIService
@@ -75,6 +76,22 @@ public class TestZendeskSupportAPIService
         assertEquals(expectURL, url);
     }
 
+    @Test
+    public void testBuildPathWithIncrementalSideloadIncludes()
+    {
+        String expectURL = "https://abc.zendesk.com/api/v2/incremental/tickets.json?start_time=0&include=users%2Corganizations";
+        loadData("data/tickets.json");
+
+        ConfigSource src = ZendeskTestHelper.getConfigSource("incremental.yml");
+        src.set("includes", Arrays.asList("users", "organizations", "ticket_audits"));
+        src.set("sideload_includes", true);
+        ZendeskInputPlugin.PluginTask task = CONFIG_MAPPER.map(src, ZendeskInputPlugin.PluginTask.class);
+        setupZendeskSupportAPIService(task);
+
+        String url = zendeskSupportAPIService.buildURI(0, 0);
+        assertEquals(expectURL, url);
+    }
+
     @Test
     public void testBuildPathWithIncrementalTimeChange()
     {
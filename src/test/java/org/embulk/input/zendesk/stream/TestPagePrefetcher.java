@@ -0,0 +1,93 @@
+package org.embulk.input.zendesk.stream;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPagePrefetcher
+{
+    @Test
+    public void testHandOutPagesInOrder()
+    {
+        try (PagePrefetcher prefetcher = new PagePrefetcher("1", 2, url -> new PagePrefetcher.Page(Collections.emptyList(), null),
+                countingNextUrl(3), thread -> { })) {
+            assertTrue(prefetcher.next() != null);
+            assertTrue(prefetcher.next() != null);
+            assertTrue(prefetcher.next() != null);
+            assertEquals(null, prefetcher.next());
+        }
+    }
+
+    @Test
+    public void testCloseAbortTheRequestBeingSent()
+    {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch aborted = new CountDownLatch(1);
+        AtomicReference<Thread> producer = new AtomicReference<>();
+        AtomicReference<Thread> abortedThread = new AtomicReference<>();
+
+        PagePrefetcher prefetcher = new PagePrefetcher("1", 2, url -> {
+            producer.set(Thread.currentThread());
+            fetching.countDown();
+            // Like a blocking read, doesn't stop on interrupt
+            Uninterruptibles.awaitUninterruptibly(aborted);
+            throw new RuntimeException("aborted");
+        }, page -> null, thread -> {
+            abortedThread.set(thread);
+            aborted.countDown();
+        });
+        Uninterruptibles.awaitUninterruptibly(fetching);
+
+        prefetcher.close();
+
+        assertEquals(producer.get(), abortedThread.get());
+        assertFalse(producer.get().isAlive());
+    }
+
+    @Test
+    public void testCloseStopProducerWaitingOnAFullQueue()
+    {
+        AtomicReference<Thread> producer = new AtomicReference<>();
+        PagePrefetcher prefetcher = new PagePrefetcher("1", 1, url -> {
+            producer.set(Thread.currentThread());
+            return new PagePrefetcher.Page(Collections.emptyList(), null);
+        }, page -> "next", thread -> { });
+        while (producer.get() == null) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+
+        prefetcher.close();
+
+        assertFalse(producer.get().isAlive());
+    }
+
+    @Test
+    public void testThrowErrorOfTheProducerFromNext()
+    {
+        try (PagePrefetcher prefetcher = new PagePrefetcher("1", 2, url -> {
+            throw new OutOfMemoryError("page too large");
+        }, page -> null, thread -> { })) {
+            prefetcher.next();
+            fail("The producer error should be thrown");
+        }
+        catch (OutOfMemoryError e) {
+            assertEquals("page too large", e.getMessage());
+        }
+    }
+
+    private static Function<PagePrefetcher.Page, String> countingNextUrl(final int pages)
+    {
+        final int[] fetched = {0};
+        return page -> ++fetched[0] < pages ? String.valueOf(fetched[0] + 1) : null;
+    }
+}
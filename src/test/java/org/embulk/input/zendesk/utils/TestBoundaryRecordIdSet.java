@@ -0,0 +1,47 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBoundaryRecordIdSet
+{
+    @Test
+    public void testDropRecordsReturnedAgainByTheNextPage()
+    {
+        BoundaryRecordIdSet ids = new BoundaryRecordIdSet();
+        assertTrue(ids.add(id(1), 100));
+        assertTrue(ids.add(id(2), 110));
+        assertTrue(ids.add(id(3), 110));
+        assertFalse(ids.add(id(3), 110));
+
+        // next page starts at the end_time of the previous one
+        ids.nextPage(110);
+        assertFalse(ids.add(id(2), 110));
+        assertFalse(ids.add(id(3), 110));
+        assertTrue(ids.add(id(4), 120));
+    }
+
+    @Test
+    public void testForgetRecordsBeforeTheBoundary()
+    {
+        BoundaryRecordIdSet ids = new BoundaryRecordIdSet();
+        assertTrue(ids.add(id(1), 100));
+        assertTrue(ids.add(id(2), 110));
+
+        ids.nextPage(110);
+        assertTrue(ids.add(id(1), 115));
+
+        // all records of the page share the same time, the next page starts a second later
+        ids.nextPage(116);
+        assertTrue(ids.add(id(1), 116));
+    }
+
+    private static JsonNode id(final long id)
+    {
+        return JsonNodeFactory.instance.numberNode(id);
+    }
+}
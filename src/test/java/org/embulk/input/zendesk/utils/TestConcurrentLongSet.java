@@ -0,0 +1,87 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestConcurrentLongSet
+{
+    @Test
+    public void testAddOnlyOnce()
+    {
+        ConcurrentLongSet set = new ConcurrentLongSet();
+        assertTrue(set.add(1002));
+        assertFalse(set.add(1002));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(-1));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(0));
+        assertFalse(set.contains(1));
+    }
+
+    @Test
+    public void testGrowKeepValues()
+    {
+        ConcurrentLongSet set = new ConcurrentLongSet();
+        for (long id = 1; id <= 100_000; id++) {
+            assertTrue(set.add(id));
+        }
+        for (long id = 1; id <= 100_000; id++) {
+            assertTrue(set.contains(id));
+            assertFalse(set.add(id));
+        }
+        assertEquals(100_000, set.size());
+    }
+
+    @Test
+    public void testConcurrentAddCountEachValueOnce() throws Exception
+    {
+        ConcurrentLongSet set = new ConcurrentLongSet();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> added = new ArrayList<>();
+            // Every thread adds the same values, only one of them wins each value
+            for (int i = 0; i < 4; i++) {
+                added.add(executor.submit(() -> {
+                    int count = 0;
+                    for (long id = 0; id < 50_000; id++) {
+                        if (set.add(id)) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> future : added) {
+                total += future.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(50_000, total);
+            assertEquals(50_000, set.size());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRecordIdSetFallbackToStringIds()
+    {
+        RecordIdSet ids = new RecordIdSet();
+        assertTrue(ids.add(JsonNodeFactory.instance.numberNode(1002L)));
+        assertFalse(ids.add(JsonNodeFactory.instance.numberNode(1002L)));
+        assertTrue(ids.add(JsonNodeFactory.instance.textNode("5c7c1a2b3e4f")));
+        assertFalse(ids.add(JsonNodeFactory.instance.textNode("5c7c1a2b3e4f")));
+    }
+}
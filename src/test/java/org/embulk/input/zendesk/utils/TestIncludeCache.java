@@ -0,0 +1,146 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestIncludeCache
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testServeOnlyTheSameUpdatedAt()
+    {
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 1024 * 1024)) {
+            cache.put("tickets/1/comments", "2019-02-20T06:51:50Z", ZendeskUtils.parseJsonObject("{\"id\":10}"));
+            assertEquals(10, cache.get("tickets/1/comments", "2019-02-20T06:51:50Z").get("id").asInt());
+            assertNull(cache.get("tickets/1/comments", "2019-02-21T00:00:00Z"));
+            assertNull(cache.get("tickets/2/comments", "2019-02-20T06:51:50Z"));
+
+            cache.put("tickets/1/comments", "2019-02-21T00:00:00Z", ZendeskUtils.parseJsonObject("{\"id\":11}"));
+            assertNull(cache.get("tickets/1/comments", "2019-02-20T06:51:50Z"));
+            assertEquals(11, cache.get("tickets/1/comments", "2019-02-21T00:00:00Z").get("id").asInt());
+        }
+    }
+
+    @Test
+    public void testKeepEntriesAcrossRuns() throws Exception
+    {
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 1024 * 1024)) {
+            cache.put("tickets/1/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":10}"));
+            cache.put("tickets/2/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":20}"));
+        }
+        // A crash in the middle of an entry leaves a partial one at the end of the log
+        try (RandomAccessFile log = new RandomAccessFile(new File(folder.getRoot(), "includes.log"), "rw")) {
+            log.seek(log.length());
+            log.writeInt(100);
+        }
+
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 1024 * 1024)) {
+            assertEquals(10, cache.get("tickets/1/comments", "t1").get("id").asInt());
+            assertEquals(20, cache.get("tickets/2/comments", "t1").get("id").asInt());
+            cache.put("tickets/3/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":30}"));
+            assertEquals(30, cache.get("tickets/3/comments", "t1").get("id").asInt());
+        }
+    }
+
+    @Test
+    public void testDropEntriesFromACorruptLength() throws Exception
+    {
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 1024 * 1024)) {
+            cache.put("tickets/1/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":10}"));
+        }
+        File logFile = new File(folder.getRoot(), "includes.log");
+        long firstEntryLength = logFile.length();
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 1024 * 1024)) {
+            cache.put("tickets/2/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":20}"));
+            cache.put("tickets/3/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":30}"));
+        }
+        // The payload length of the second entry is negative, the entries after it can't be located
+        try (RandomAccessFile log = new RandomAccessFile(logFile, "rw")) {
+            log.seek(firstEntryLength + 4 + "tickets/2/comments".length() + 4 + "t1".length());
+            log.writeInt(-5);
+        }
+
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 1024 * 1024)) {
+            assertEquals(10, cache.get("tickets/1/comments", "t1").get("id").asInt());
+            assertNull(cache.get("tickets/2/comments", "t1"));
+            assertNull(cache.get("tickets/3/comments", "t1"));
+            assertEquals(firstEntryLength, logFile.length());
+            cache.put("tickets/4/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":40}"));
+            assertEquals(40, cache.get("tickets/4/comments", "t1").get("id").asInt());
+        }
+    }
+
+    @Test
+    public void testEvictOldestEntriesPastMaxSize()
+    {
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 4096)) {
+            for (int id = 0; id < 200; id++) {
+                cache.put("tickets/" + id + "/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":" + id + "}"));
+            }
+            assertNull(cache.get("tickets/0/comments", "t1"));
+            JsonNode latest = cache.get("tickets/199/comments", "t1");
+            assertEquals(199, latest.get("id").asInt());
+        }
+        assertTrue(new File(folder.getRoot(), "includes.log").length() <= 4096);
+    }
+
+    @Test
+    public void testEvictOldestEntriesPastMaxEntries()
+    {
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 1024 * 1024, 10)) {
+            for (int id = 0; id < 25; id++) {
+                cache.put("tickets/" + id + "/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":" + id + "}"));
+            }
+            assertNull(cache.get("tickets/0/comments", "t1"));
+            assertEquals(24, cache.get("tickets/24/comments", "t1").get("id").asInt());
+        }
+        // A previous run may have kept more entries than allowed now
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 1024 * 1024, 2)) {
+            assertNull(cache.get("tickets/22/comments", "t1"));
+            assertEquals(23, cache.get("tickets/23/comments", "t1").get("id").asInt());
+            assertEquals(24, cache.get("tickets/24/comments", "t1").get("id").asInt());
+        }
+    }
+
+    @Test
+    public void testReadWhileOtherThreadsWriteAndCompact() throws Exception
+    {
+        try (IncludeCache cache = IncludeCache.open(folder.getRoot().getPath(), 1024 * 1024, 100)) {
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                final int offset = thread;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        int id = (i * 7 + offset) % 300;
+                        cache.put("tickets/" + id + "/comments", "t1", ZendeskUtils.parseJsonObject("{\"id\":" + id + "}"));
+                        JsonNode cached = cache.get("tickets/" + id + "/comments", "t1");
+                        // Possibly evicted already by the compaction of another thread, never another entry
+                        assertTrue(cached == null || cached.get("id").asInt() == id);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            pool.shutdown();
+        }
+    }
+}
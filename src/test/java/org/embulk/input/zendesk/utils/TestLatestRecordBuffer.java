@@ -0,0 +1,108 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class TestLatestRecordBuffer
+{
+    @Test
+    public void testKeepLatestVersionInMemory()
+    {
+        try (LatestRecordBuffer buffer = new LatestRecordBuffer(1024 * 1024)) {
+            addVersions(buffer);
+            assertLatestVersions(buffer);
+        }
+    }
+
+    @Test
+    public void testKeepLatestVersionSpilledToDisk()
+    {
+        // every record is spilled right away
+        try (LatestRecordBuffer buffer = new LatestRecordBuffer(1)) {
+            addVersions(buffer);
+            assertLatestVersions(buffer);
+        }
+    }
+
+    @Test
+    public void testCloseEveryOutputWhenSomeFail() throws Exception
+    {
+        DataOutputStream[] outputs = new DataOutputStream[4];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = mock(DataOutputStream.class);
+        }
+        doThrow(new IOException("first")).when(outputs[0]).close();
+        doThrow(new IOException("third")).when(outputs[2]).close();
+
+        try {
+            LatestRecordBuffer.closeAll(outputs);
+            fail("The close failure should be thrown");
+        }
+        catch (IOException e) {
+            assertEquals("first", e.getMessage());
+            assertEquals("third", e.getSuppressed()[0].getMessage());
+        }
+        for (DataOutputStream output : outputs) {
+            verify(output).close();
+        }
+    }
+
+    @Test
+    public void testSplitSpilledPartitionsLargerThanMemoryLimit()
+    {
+        // About 90 KB spilled to 32 partitions of about 3 KB, each one split in parts of about 1 KB to be read back
+        try (LatestRecordBuffer buffer = new LatestRecordBuffer(1024)) {
+            for (int version = 0; version < 2; version++) {
+                for (int id = 0; id < 1000; id++) {
+                    buffer.add(String.valueOf(id), version, record(id, "version " + version));
+                }
+            }
+            Map<String, String> latest = new HashMap<>();
+            buffer.forEachLatest(record -> latest.put(record.get("id").asText(), record.get("subject").asText()));
+            assertEquals(1000, latest.size());
+            for (String subject : latest.values()) {
+                assertEquals("version 1", subject);
+            }
+            assertTrue(buffer.getReadPartitions() >= 64);
+        }
+    }
+
+    private static void addVersions(LatestRecordBuffer buffer)
+    {
+        buffer.add("1", 100, record(1, "first"));
+        buffer.add("2", 100, record(2, "only"));
+        buffer.add("1", 120, record(1, "latest"));
+        buffer.add("1", 110, record(1, "older"));
+        buffer.add("3", 100, record(3, "first"));
+        // same time, the one returned later wins
+        buffer.add("3", 100, record(3, "latest"));
+    }
+
+    private static void assertLatestVersions(LatestRecordBuffer buffer)
+    {
+        Map<String, String> latest = new HashMap<>();
+        buffer.forEachLatest(record -> latest.put(record.get("id").asText(), record.get("subject").asText()));
+        assertEquals(3, latest.size());
+        assertEquals("latest", latest.get("1"));
+        assertEquals("only", latest.get("2"));
+        assertEquals("latest", latest.get("3"));
+    }
+
+    private static JsonNode record(long id, String subject)
+    {
+        return JsonNodeFactory.instance.objectNode().put("id", id).put("subject", subject);
+    }
+}
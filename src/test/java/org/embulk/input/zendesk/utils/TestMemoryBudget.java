@@ -0,0 +1,50 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMemoryBudget
+{
+    @Test
+    public void testWaitUntilBytesAreReleased() throws Exception
+    {
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(60);
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            budget.acquire(60);
+            acquired.countDown();
+        });
+        waiting.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        budget.release(60);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(60, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testLetLargeRecordThroughWhenNothingIsHeld()
+    {
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(1000);
+        assertEquals(1000, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testEstimateBytesGrowWithRecord()
+    {
+        JsonNode tickets = ZendeskTestHelper.getJsonFromFile("data/tickets.json").get("tickets");
+        long ticketBytes = MemoryBudget.estimateBytes(tickets.get(0));
+        assertTrue(ticketBytes > tickets.get(0).toString().length());
+        assertTrue(MemoryBudget.estimateBytes(tickets) > ticketBytes * tickets.size());
+    }
+}
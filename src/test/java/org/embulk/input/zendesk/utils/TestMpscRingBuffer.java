@@ -0,0 +1,80 @@
+package org.embulk.input.zendesk.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestMpscRingBuffer
+{
+    @Test
+    public void testRejectWhenFull()
+    {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(3);
+        assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+
+        assertEquals(0, buffer.poll().intValue());
+        assertTrue(buffer.offer(4));
+        for (int i = 1; i < 5; i++) {
+            assertEquals(i, buffer.poll().intValue());
+        }
+        assertNull(buffer.poll());
+        assertFalse(buffer.hasPublished());
+    }
+
+    @Test
+    public void testKeepTheOrderOfEveryProducer() throws Exception
+    {
+        int producers = 4;
+        int itemsPerProducer = 100000;
+        MpscRingBuffer<long[]> buffer = new MpscRingBuffer<>(64);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int i = 0; i < itemsPerProducer; i++) {
+                    while (!buffer.offer(new long[] {producer, i})) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        long[] next = new long[producers];
+        int polled = 0;
+        while (polled < producers * itemsPerProducer) {
+            long[] item = buffer.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[(int) item[0]]++, item[1]);
+            polled++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(buffer.poll());
+    }
+}
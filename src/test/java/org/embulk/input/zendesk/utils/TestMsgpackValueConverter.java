@@ -0,0 +1,35 @@
+package org.embulk.input.zendesk.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.embulk.util.json.JsonParser;
+import org.junit.Test;
+import org.msgpack.value.Value;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMsgpackValueConverter
+{
+    private final JsonParser jsonParser = new JsonParser();
+
+    @Test
+    public void testConvertLikeTheJsonParser()
+    {
+        JsonNode ticket = ZendeskTestHelper.getJsonFromFile("data/ticket_with_related_objects.json");
+
+        assertEquals(jsonParser.parse(ticket.toString()), MsgpackValueConverter.convert(ticket));
+    }
+
+    @Test
+    public void testConvertScalars()
+    {
+        JsonNode node = ZendeskUtils.parseJsonObject("{\"long\":360857467053,\"big\":18446744073709551616,\"double\":1.5,"
+                + "\"string\":\"\\u00e9t\\u00e9\",\"boolean\":false,\"null\":null,\"empty\":[],\"nested\":[{}]}");
+
+        Value value = MsgpackValueConverter.convert(node);
+
+        assertEquals(jsonParser.parse(node.toString()), value);
+        assertEquals(new BigInteger("18446744073709551616"), value.asMapValue().map().get(jsonParser.parse("\"big\"")).asIntegerValue().asBigInteger());
+    }
+}
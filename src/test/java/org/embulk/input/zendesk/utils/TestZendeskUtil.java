@@ -1,9 +1,22 @@
 package org.embulk.input.zendesk.utils;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.DataException;
 import org.junit.Rule;
 import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 
 public class TestZendeskUtil
 {
@@ -17,4 +30,60 @@ public class TestZendeskUtil
         String encode = ZendeskUtils.convertBase64("ahksdjfhkjasdhfkjahdfkjahdkjfhakjdf");
         assertEquals(expectedResult, encode);
     }
+
+    @Test
+    public void testShardWindowsCoverTheRangeWithoutOverlap()
+    {
+        int numberOfShards = ZendeskUtils.numberOfShards(100, 200, 3);
+        assertEquals(3, numberOfShards);
+        assertArrayEquals(new long[] {100, 132}, ZendeskUtils.getShardWindow(100, 200, numberOfShards, 0));
+        assertArrayEquals(new long[] {133, 166}, ZendeskUtils.getShardWindow(100, 200, numberOfShards, 1));
+        assertArrayEquals(new long[] {167, 200}, ZendeskUtils.getShardWindow(100, 200, numberOfShards, 2));
+    }
+
+    @Test
+    public void testNumberOfShardsNeverExceedTheRange()
+    {
+        assertEquals(2, ZendeskUtils.numberOfShards(100, 101, 10));
+        assertEquals(1, ZendeskUtils.numberOfShards(100, 100, 10));
+    }
+
+    @Test
+    public void testStreamListRecords() throws IOException
+    {
+        JsonNode page = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        List<JsonNode> records = new ArrayList<>();
+
+        JsonNode fields = ZendeskUtils.streamListRecords(toInputStream(page), "tickets", 0, records::add);
+
+        assertEquals(page.get("tickets").size(), records.size());
+        assertEquals(page.get("tickets").get(0), records.get(0));
+        assertEquals(page.get("end_time"), fields.get("end_time"));
+        assertEquals(page.get("count"), fields.get("count"));
+        assertFalse(fields.has("tickets"));
+    }
+
+    @Test
+    public void testStreamListRecordsSkipConsumedRecords() throws IOException
+    {
+        JsonNode page = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        List<JsonNode> records = new ArrayList<>();
+
+        ZendeskUtils.streamListRecords(toInputStream(page), "tickets", 2, records::add);
+
+        assertEquals(page.get("tickets").size() - 2, records.size());
+        assertEquals(page.get("tickets").get(2), records.get(0));
+    }
+
+    @Test
+    public void testStreamListRecordsMissingTarget()
+    {
+        JsonNode page = ZendeskTestHelper.getJsonFromFile("data/tickets.json");
+        assertThrows(DataException.class, () -> ZendeskUtils.streamListRecords(toInputStream(page), "users", 0, record -> { }));
+    }
+
+    private InputStream toInputStream(JsonNode jsonNode)
+    {
+        return new ByteArrayInputStream(jsonNode.toString().getBytes(StandardCharsets.UTF_8));
+    }
 }
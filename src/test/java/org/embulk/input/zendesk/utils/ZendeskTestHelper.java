@@ -11,10 +11,13 @@ import org.embulk.config.ModelManager;
 import org.embulk.spi.ExecSessionInternal;
 import org.embulk.test.EmbulkTests;
 import org.junit.Assert;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 
 import static junit.framework.TestCase.fail;
 
@@ -43,6 +46,15 @@ public final class ZendeskTestHelper
         return null;
     }
 
+    /**
+     * Answer for ZendeskRestClient#doGetRecords which streams the given page to the record consumer
+     */
+    public static Answer<JsonNode> answerRecords(final JsonNode page)
+    {
+        return invocation -> ZendeskUtils.streamListRecords(new ByteArrayInputStream(page.toString().getBytes(StandardCharsets.UTF_8)),
+                invocation.getArgument(3), 0, invocation.getArgument(4));
+    }
+
     public static ConfigSource getConfigSource(String file)
     {
         ConfigSource configSource = null;